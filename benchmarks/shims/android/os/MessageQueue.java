@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2012 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package android.os;
+
+import java.util.ArrayList;
+
+/* Pure Java MessageQueue, for the benchmarks only: the one of the
+ * android-all jar is native, so that no Looper, and thus no Handler,
+ * can be created off-device. Messages are kept sorted by time, and
+ * next() waits on the queue. Sync barriers are not supported.
+ */
+public final class MessageQueue {
+
+  public static interface IdleHandler {
+    boolean queueIdle();
+  }
+
+  private final boolean quit_allowed;
+  private final ArrayList<IdleHandler> idle_handlers = new ArrayList<IdleHandler>();
+  Message mMessages;
+  private boolean quitting = false;
+
+  MessageQueue(boolean quitAllowed) {
+    quit_allowed = quitAllowed;
+  }
+
+  public synchronized void addIdleHandler(IdleHandler handler) {
+    idle_handlers.add(handler);
+  }
+
+  public synchronized void removeIdleHandler(IdleHandler handler) {
+    idle_handlers.remove(handler);
+  }
+
+  synchronized Message next() {
+    for (;;) {
+      if (quitting)
+        return null;
+      long now = SystemClock.uptimeMillis();
+      Message msg = mMessages;
+      if (msg != null && msg.when <= now) {
+        mMessages = msg.next;
+        msg.next = null;
+        msg.markInUse();
+        return msg;
+      }
+      try {
+        if (msg == null)
+          wait();
+        else
+          wait(msg.when - now);
+      } catch (InterruptedException e) {
+        // keep waiting, as on Android.
+      }
+    }
+  }
+
+  synchronized void quit(boolean safe) {
+    if (!quit_allowed)
+      throw new IllegalStateException("Main thread not allowed to quit.");
+    if (quitting)
+      return;
+    quitting = true;
+    while (mMessages != null) {
+      Message m = mMessages;
+      mMessages = m.next;
+      m.recycleUnchecked();
+    }
+    notifyAll();
+  }
+
+  int enqueueSyncBarrier(long when) {
+    throw new UnsupportedOperationException("sync barriers");
+  }
+
+  void removeSyncBarrier(int token) {
+    throw new UnsupportedOperationException("sync barriers");
+  }
+
+  synchronized boolean enqueueMessage(Message msg, long when) {
+    if (msg.target == null)
+      throw new IllegalArgumentException("Message must have a target.");
+    if (msg.isInUse())
+      throw new IllegalStateException(msg + " This message is already in use.");
+    if (quitting) {
+      msg.recycle();
+      return false;
+    }
+    msg.markInUse();
+    msg.when = when;
+    Message prev = null;
+    Message p = mMessages;
+    while (p != null && p.when <= when) {
+      prev = p;
+      p = p.next;
+    }
+    msg.next = p;
+    if (prev == null)
+      mMessages = msg;
+    else
+      prev.next = msg;
+    notifyAll();
+    return true;
+  }
+
+  synchronized boolean hasMessages(Handler h, int what, Object object) {
+    for (Message p = mMessages; p != null; p = p.next) {
+      if (p.target == h && p.what == what && (object == null || p.obj == object))
+        return true;
+    }
+    return false;
+  }
+
+  synchronized boolean hasMessages(Handler h, Runnable r, Object object) {
+    for (Message p = mMessages; p != null; p = p.next) {
+      if (p.target == h && p.callback == r && (object == null || p.obj == object))
+        return true;
+    }
+    return false;
+  }
+
+  synchronized boolean isIdling() {
+    return mMessages == null || mMessages.when > SystemClock.uptimeMillis();
+  }
+
+  synchronized void removeMessages(Handler h, int what, Object object) {
+    removeIf(h, true, what, null, object);
+  }
+
+  synchronized void removeMessages(Handler h, Runnable r, Object object) {
+    if (r != null)
+      removeIf(h, false, 0, r, object);
+  }
+
+  synchronized void removeCallbacksAndMessages(Handler h, Object object) {
+    removeIf(h, false, 0, null, object);
+  }
+
+  void dump(android.util.Printer pw, String prefix) {
+    pw.println(prefix + "(MessageQueue)");
+  }
+
+  // removes the messages of `h` matching `what` (if `by_what`),
+  // `r` (if not null) and `object` (if not null).
+  private void removeIf(Handler h, boolean by_what, int what, Runnable r, Object object) {
+    Message prev = null;
+    Message p = mMessages;
+    while (p != null) {
+      Message n = p.next;
+      if (p.target == h && (!by_what || p.what == what) &&
+          (r == null || p.callback == r) && (object == null || p.obj == object)) {
+        if (prev == null)
+          mMessages = n;
+        else
+          prev.next = n;
+        p.recycleUnchecked();
+      }
+      else {
+        prev = p;
+      }
+      p = n;
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2012 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package android.os;
+
+/* Pure Java SystemClock, for the benchmarks only: the one of the
+ * android-all jar is native. Uptime and realtime are both the time
+ * since the JVM started.
+ */
+public final class SystemClock {
+
+  private static final long origin = System.nanoTime();
+
+  private SystemClock() {
+  }
+
+  public static void sleep(long ms) {
+    long end = uptimeMillis() + ms;
+    while (ms > 0) {
+      try {
+        Thread.sleep(ms);
+      } catch (InterruptedException e) {
+        // keep sleeping, as on Android.
+      }
+      ms = end - uptimeMillis();
+    }
+  }
+
+  public static boolean setCurrentTimeMillis(long millis) {
+    return false;
+  }
+
+  public static long uptimeMillis() {
+    return elapsedRealtimeNanos() / 1000000L;
+  }
+
+  public static long elapsedRealtime() {
+    return elapsedRealtimeNanos() / 1000000L;
+  }
+
+  public static long elapsedRealtimeNanos() {
+    return System.nanoTime() - origin;
+  }
+
+  public static long currentThreadTimeMillis() {
+    return elapsedRealtime();
+  }
+
+  public static long currentThreadTimeMicro() {
+    return elapsedRealtimeNanos() / 1000L;
+  }
+
+  public static long currentTimeMicro() {
+    return System.currentTimeMillis() * 1000L;
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2012 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package android.util;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/* Pure Java Log, for the benchmarks only: the one of the android-all
+ * jar is native. Warnings and errors go to stderr, so that they do
+ * not go unnoticed in a run; other levels are dropped.
+ */
+public final class Log {
+
+  public static final int VERBOSE = 2;
+  public static final int DEBUG = 3;
+  public static final int INFO = 4;
+  public static final int WARN = 5;
+  public static final int ERROR = 6;
+  public static final int ASSERT = 7;
+
+  private Log() {
+  }
+
+  public static int v(String tag, String msg) {
+    return println(VERBOSE, tag, msg);
+  }
+
+  public static int v(String tag, String msg, Throwable tr) {
+    return println(VERBOSE, tag, msg + '\n' + getStackTraceString(tr));
+  }
+
+  public static int d(String tag, String msg) {
+    return println(DEBUG, tag, msg);
+  }
+
+  public static int d(String tag, String msg, Throwable tr) {
+    return println(DEBUG, tag, msg + '\n' + getStackTraceString(tr));
+  }
+
+  public static int i(String tag, String msg) {
+    return println(INFO, tag, msg);
+  }
+
+  public static int i(String tag, String msg, Throwable tr) {
+    return println(INFO, tag, msg + '\n' + getStackTraceString(tr));
+  }
+
+  public static int w(String tag, String msg) {
+    return println(WARN, tag, msg);
+  }
+
+  public static int w(String tag, String msg, Throwable tr) {
+    return println(WARN, tag, msg + '\n' + getStackTraceString(tr));
+  }
+
+  public static int w(String tag, Throwable tr) {
+    return println(WARN, tag, getStackTraceString(tr));
+  }
+
+  public static int e(String tag, String msg) {
+    return println(ERROR, tag, msg);
+  }
+
+  public static int e(String tag, String msg, Throwable tr) {
+    return println(ERROR, tag, msg + '\n' + getStackTraceString(tr));
+  }
+
+  public static int wtf(String tag, String msg) {
+    return println(ASSERT, tag, msg);
+  }
+
+  public static int wtf(String tag, Throwable tr) {
+    return println(ASSERT, tag, getStackTraceString(tr));
+  }
+
+  public static int wtf(String tag, String msg, Throwable tr) {
+    return println(ASSERT, tag, msg + '\n' + getStackTraceString(tr));
+  }
+
+  public static boolean isLoggable(String tag, int level) {
+    return level >= WARN;
+  }
+
+  public static String getStackTraceString(Throwable tr) {
+    if (tr == null) return "";
+    StringWriter sw = new StringWriter();
+    tr.printStackTrace(new PrintWriter(sw));
+    return sw.toString();
+  }
+
+  public static int println(int priority, String tag, String msg) {
+    if (priority < WARN) return 0;
+    String line = tag + ": " + msg;
+    System.err.println(line);
+    return line.length();
+  }
+}
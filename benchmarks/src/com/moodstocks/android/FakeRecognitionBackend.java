@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2012 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.moodstocks.android;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* Deterministic, pure Java RecognitionBackend.
+ * Each operation waits for a configurable latency and then succeeds
+ * with a configurable probability, drawn from a seeded sequence, so
+ * that two runs with the same seed and call order give the same
+ * results. Used to measure the Java pipeline off-device.
+ */
+public class FakeRecognitionBackend implements RecognitionBackend {
+
+  public static final String TAG = "FakeRecognitionBackend";
+
+  /* operations */
+  public static final class Op {
+    public static final int SEARCH = 0;
+    public static final int DECODE = 1;
+    public static final int MATCH = 2;
+    public static final int NB = 3;
+  }
+
+  private final long seed;
+  private final long[] latency = new long[Op.NB];
+  private final float[] hits = new float[Op.NB];
+  private final AtomicLongArray calls = new AtomicLongArray(Op.NB);
+  private boolean busy = false;
+
+  private String image_id = "fake-image";
+  private int barcode_format = Result.Type.EAN13;
+  private String barcode = "3017620422003";
+
+  /* Creates a backend that never finds anything, with no latency */
+  public FakeRecognitionBackend(long seed) {
+    super();
+    this.seed = seed;
+  }
+
+  /* Sets the latency (in microseconds) and the hit rate
+   * (between 0 and 1) of the given operation.
+   */
+  public synchronized void set(int op, long latency_us, float hit_rate) {
+    latency[op] = latency_us;
+    hits[op] = hit_rate;
+  }
+
+  /* If true, latency is spent spinning, like native code using
+   * a core would, rather than sleeping.
+   */
+  public synchronized void setBusy(boolean busy) {
+    this.busy = busy;
+  }
+
+  /* Sets the values returned on successful search and decoding */
+  public synchronized void setResults(String image_id, int barcode_format, String barcode) {
+    this.image_id = image_id;
+    this.barcode_format = barcode_format;
+    this.barcode = barcode;
+  }
+
+  /* number of calls to the given operation */
+  public long getCalls(int op) {
+    return calls.get(op);
+  }
+
+  @Override
+  public Result search(Image qry)
+      throws MoodstocksError {
+    if (!run(Op.SEARCH)) return null;
+    return result(Result.Type.IMAGE, image_id);
+  }
+
+  @Override
+  public Result decode(Image qry, int formats)
+      throws MoodstocksError {
+    if (!run(Op.DECODE) || (formats & barcode_format) == 0) return null;
+    return result(barcode_format, barcode);
+  }
+
+  @Override
+  public boolean match(Image qry, Result ref)
+      throws MoodstocksError {
+    return run(Op.MATCH) && ref.getType() == Result.Type.IMAGE;
+  }
+
+  /* waits for the latency of `op` and draws its outcome */
+  private boolean run(int op)
+      throws MoodstocksError {
+    long n = calls.getAndIncrement(op);
+    long us;
+    float rate;
+    boolean spin;
+    synchronized (this) {
+      us = latency[op];
+      rate = hits[op];
+      spin = busy;
+    }
+    if (us > 0) {
+      if (spin) {
+        long end = System.nanoTime() + us*1000;
+        while (System.nanoTime() < end) {
+          // spin
+        }
+      }
+      else {
+        try {
+          Thread.sleep(us/1000, (int)(us%1000)*1000);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new MoodstocksError("interrupted", MoodstocksError.Code.ABORT);
+        }
+      }
+    }
+    return draw(op, n) < rate;
+  }
+
+  /* n-th value of the sequence of `op`, uniform in [0, 1[ (SplitMix64) */
+  private float draw(int op, long n) {
+    long z = seed + (op+1)*0x632BE59BD9B4E019L + n*0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    z = z ^ (z >>> 31);
+    return (z >>> 40) / (float)(1 << 24);
+  }
+
+  private synchronized Result result(int type, String value) {
+    byte[] bytes = value.getBytes();
+    return new Result(type, bytes, bytes.length);
+  }
+
+}
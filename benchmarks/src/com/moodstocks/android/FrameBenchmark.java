@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2012 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.moodstocks.android;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/* NV21 buffer handling done on each preview frame, before any
+ * recognition: mailbox, region of interest cropping and scene
+ * thumbnail.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FrameBenchmark {
+
+  @Param({"640x480", "1280x720"})
+  public String size;
+
+  private int width;
+  private int height;
+  private byte[] frame;
+  private byte[] other;
+  private FrameMailbox mailbox;
+  private RegionOfInterest center;
+  private RegionOfInterest subsampled;
+  private LumaThumbnail thumbnail;
+
+  @Setup
+  public void setup() {
+    String[] wh = size.split("x");
+    width = Integer.parseInt(wh[0]);
+    height = Integer.parseInt(wh[1]);
+    frame = new byte[width*height*3/2];
+    other = new byte[width*height*3/2];
+    for (int i = 0; i < frame.length; ++i) {
+      frame[i] = (byte)(i*31);
+      other[i] = (byte)(i*17);
+    }
+    mailbox = new FrameMailbox();
+    center = new RegionOfInterest();
+    center.setCenter(0.5f);
+    subsampled = new RegionOfInterest();
+    subsampled.setSubsampling(2);
+    thumbnail = new LumaThumbnail();
+  }
+
+  @Benchmark
+  public byte[] mailboxPostTake() {
+    mailbox.post(frame, 0);
+    mailbox.post(other, 0);
+    return mailbox.take();
+  }
+
+  @Benchmark
+  public boolean cropCenter() {
+    return center.apply(frame, width, height, false);
+  }
+
+  @Benchmark
+  public boolean subsample() {
+    return subsampled.apply(frame, width, height, false);
+  }
+
+  @Benchmark
+  public float thumbnail() {
+    thumbnail.update(frame, width, height);
+    return thumbnail.update(other, width, height);
+  }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2012 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.moodstocks.android;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/* Verification and vote of ScannerSession on a locked image or
+ * QR Code result, against a FakeRecognitionBackend with no latency: this
+ * measures the Java side of the decision only.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LockBenchmark {
+
+  @Param({"1.0", "0.5"})
+  public float hitRate;
+
+  @Param({"IMAGE", "QRCODE"})
+  public String type;
+
+  private FakeRecognitionBackend backend;
+  private ResultVoter voter;
+  private Result locked;
+  private ImagePool pool;
+  private Image qry;
+
+  @Setup
+  public void setup() {
+    int t = type.equals("IMAGE") ? Result.Type.IMAGE : Result.Type.QRCODE;
+    backend = new FakeRecognitionBackend(42);
+    backend.set(FakeRecognitionBackend.Op.MATCH, 0, hitRate);
+    backend.set(FakeRecognitionBackend.Op.DECODE, 0, hitRate);
+    backend.setResults("fake-image", t, "http://world.openfoodfacts.org");
+    byte[] v = (t == Result.Type.IMAGE ? "fake-image" : "http://world.openfoodfacts.org").getBytes();
+    locked = new Result(t, v, v.length);
+    // no cooldown: every call verifies the locked result.
+    voter = new ResultVoter();
+    voter.setCooldown(0);
+    pool = new ImagePool(1);
+    qry = pool.acquire(new byte[1280*720*3/2], 1280, 720, 1280, Image.PixelFormat.NV21, 0);
+    qry.retain();
+  }
+
+  @TearDown
+  public void tearDown() {
+    qry.release();
+    pool.close();
+  }
+
+  @Benchmark
+  public Result check() throws MoodstocksError {
+    if (voter.getResult() == null) {
+      // keep locked: a lost lock would be re-acquired by a full search.
+      voter.vote(locked, 0);
+    }
+    boolean found = voter.check(backend, qry);
+    return voter.vote(found ? locked : null, 0);
+  }
+
+}
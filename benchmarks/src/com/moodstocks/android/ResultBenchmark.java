@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2012 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.moodstocks.android;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/* Result construction, getValue() and equals(), as done for each
+ * frame by the lock check and the listeners.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ResultBenchmark {
+
+  private byte[] bytes;
+  private Result ean;
+  private Result same;
+  private Result other;
+
+  @Setup
+  public void setup() {
+    bytes = "3017620422003".getBytes();
+    ean = new Result(Result.Type.EAN13, bytes, bytes.length);
+    same = new Result(Result.Type.EAN13, bytes, bytes.length);
+    byte[] b = "3017620422010".getBytes();
+    other = new Result(Result.Type.EAN13, b, b.length);
+  }
+
+  @Benchmark
+  public Result construct() {
+    return new Result(Result.Type.EAN13, bytes, bytes.length);
+  }
+
+  @Benchmark
+  public String getValue() {
+    return ean.getValue();
+  }
+
+  @Benchmark
+  public boolean equalsSame() {
+    return ean.equals(same);
+  }
+
+  @Benchmark
+  public boolean equalsOther() {
+    return ean.equals(other);
+  }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2012 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.moodstocks.android;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/* Time to result of the scan engines on a FakeRecognitionBackend
+ * spending CPU like the native core would, with image search and
+ * barcode decoding both enabled.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ScanEngineBenchmark {
+
+  @Param({"serial", "parallel"})
+  public String engine;
+
+  // search and decoding latencies, in microseconds
+  @Param({"5000"})
+  public long searchLatency;
+
+  @Param({"3000"})
+  public long decodeLatency;
+
+  private ScanEngine scanEngine;
+  private FakeRecognitionBackend backend;
+  private ScanMetrics metrics;
+  private ImagePool pool;
+  private byte[] frame;
+
+  @Setup
+  public void setup() {
+    scanEngine = engine.equals("parallel") ? new ParallelScanEngine(2) : new SerialScanEngine();
+    backend = new FakeRecognitionBackend(42);
+    backend.setBusy(true);
+    backend.set(FakeRecognitionBackend.Op.SEARCH, searchLatency, 0.2f);
+    backend.set(FakeRecognitionBackend.Op.DECODE, decodeLatency, 0.5f);
+    metrics = new ScanMetrics();
+    pool = new ImagePool(2);
+    frame = new byte[1280*720*3/2];
+  }
+
+  @TearDown
+  public void tearDown() {
+    scanEngine.shutdown();
+    pool.close();
+  }
+
+  @Benchmark
+  public Result scan() throws MoodstocksError {
+    Image qry = pool.acquire(frame, 1280, 720, 1280, Image.PixelFormat.NV21, 0);
+    qry.retain();
+    try {
+      return scanEngine.scan(backend, qry, Result.Type.IMAGE|Result.Type.EAN13, metrics);
+    } finally {
+      qry.release();
+      scanEngine.drain();
+    }
+  }
+
+}
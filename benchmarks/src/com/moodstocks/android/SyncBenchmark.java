@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2012 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.moodstocks.android;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import android.os.Looper;
+
+/* Fan-out of a sync progress notification to the sync listener
+ * and the extra listeners held as WeakReferences.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SyncBenchmark {
+
+  @Param({"1", "8", "64"})
+  public int listeners;
+
+  private Sync sync;
+  // strong references keeping the listeners alive
+  private List<Sync.Listener> alive = new ArrayList<Sync.Listener>();
+  private int current = 0;
+
+  @Setup
+  public void setup() {
+    // Sync is a Handler: it needs a Looper, that is never run here.
+    if (Looper.myLooper() == null)
+      Looper.prepare();
+    List<WeakReference<Sync.Listener>> extra = new CopyOnWriteArrayList<WeakReference<Sync.Listener>>();
+    for (int i = 0; i < listeners; ++i) {
+      Sync.Listener l = new CountingListener();
+      alive.add(l);
+      extra.add(new WeakReference<Sync.Listener>(l));
+    }
+    sync = new Sync(new CountingListener(), extra, new OperationRegistry<Sync>(), new CancellationToken());
+  }
+
+  @Benchmark
+  public void progress() {
+    current = (current+1) % 50000;
+    sync.progress(50000, current);
+  }
+
+  private static class CountingListener implements Sync.Listener {
+    private int calls = 0;
+
+    @Override
+    public void onSyncStart() {
+      calls++;
+    }
+
+    @Override
+    public void onSyncComplete() {
+      calls++;
+    }
+
+    @Override
+    public void onSyncFailed(MoodstocksError e) {
+      calls++;
+    }
+
+    @Override
+    public void onSyncProgress(int total, int current) {
+      calls++;
+    }
+  }
+
+}
@@ -24,7 +24,6 @@
 package com.moodstocks.android;
 
 import java.lang.ref.WeakReference;
-import java.util.Set;
 
 import android.os.Handler;
 import android.os.Message;
@@ -34,8 +33,12 @@ public class ApiSearch extends Handler implements Runnable {
   public static final String TAG = "ApiSearch";
   private WeakReference<Listener> listener;
   private Image qry;
-  private Set<ApiSearch> set;
-  private boolean cancelled = false;
+  private OperationRegistry<ApiSearch> set;
+  private long id;
+  private CancellationToken token;
+  // time at which the search was queued, and waited in the queue.
+  private long queued = System.nanoTime();
+  private long wait = 0;
   
   private int ptr = 0;
   
@@ -60,18 +63,28 @@ public class ApiSearch extends Handler implements Runnable {
     private static final int END = 2;
   }
 
-  protected ApiSearch(Listener listener, Image qry, Set<ApiSearch> set) {
+  protected ApiSearch(Listener listener, Image qry, OperationRegistry<ApiSearch> set,
+                      CancellationToken token) {
     super();
     this.listener = new WeakReference<Listener>(listener);
     this.qry = qry;
     qry.retain();
     this.set = set;
-    set.add(this);
+    this.id = set.add(this);
+    this.token = token;
+    // abort the network request as soon as the token is cancelled.
+    token.onCancel(new Runnable() {
+      @Override
+      public void run() {
+        cancel_native();
+      }
+    });
   }
 
   @Override
   public void run() {
-    if (!cancelled) {
+    wait = System.nanoTime()-queued;
+    if (!token.isCancelled()) {
       startMessage();
       Result r = null;
       MoodstocksError err = null;
@@ -81,15 +94,44 @@ public class ApiSearch extends Handler implements Runnable {
         err = e;
       }
       qry.release();
+      if (token.isCancelled())
+        err = token.error();
       endMessage(r, err);
     }
-    else
+    else {
       qry.release();
+      endMessage(null, token.error());
+    }
   }
   
   protected void cancel() {
-    cancelled = true;
-    cancel_native();
+    token.cancel();
+  }
+
+  /* Drops a search that will never run: it was removed from the
+   * queue, superseded by a newer search if `e` is null, or
+   * rejected with `e`. The image goes back to its owner.
+   */
+  void drop(MoodstocksError e) {
+    if (e == null)
+      token.cancel();
+    qry.release();
+    endMessage(null, e);
+  }
+
+  /* Returns true if `l` will be notified of this search */
+  boolean isFrom(Listener l) {
+    return listener.get() == l;
+  }
+
+  /* Returns the id of this search */
+  protected long getId() {
+    return id;
+  }
+
+  /* time spent in the queue, in ns, 0 if not run yet */
+  long getWaitTime() {
+    return wait;
   }
 
   private void startMessage() {
@@ -110,9 +152,13 @@ public class ApiSearch extends Handler implements Runnable {
           l.onApiSearchStart();
         break;
       case MsgCode.END:
-        set.remove(this);
+        set.remove(id);
         ApiSearchMsg m = (ApiSearchMsg)msg.obj;
-        if (l != null && !cancelled) {
+        boolean aborted = token.isCancelled() && !token.isExpired();
+        // the search is over: nothing left to cancel.
+        token.dispose();
+        // cancelled searches end silently, expired ones with a TIMEOUT.
+        if (l != null && !aborted) {
           if (m.error == null)
             l.onApiSearchComplete(m.result);
           else
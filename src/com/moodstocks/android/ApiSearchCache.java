@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2012 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.moodstocks.android;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/* Cache of API Search results, keyed on a perceptual hash of the
+ * query frame (see DHash), so that snapping the same product twice
+ * only reaches Moodstocks API once.
+ * A query hits the cache if its hash is within a few bits of a
+ * cached one. Results, including "nothing found", expire after a
+ * time-to-live, and the least recently used ones are evicted when
+ * the cache is full.
+ */
+public class ApiSearchCache {
+
+  public static final String TAG = "ApiSearchCache";
+  /* cached answer of the searches that found nothing */
+  public static final Result NOT_FOUND = new Result(Result.Type.NONE, new byte[0], 0);
+
+  private int capacity = 32;
+  private long ttl = 10*60*1000;
+  private long negative_ttl = 60*1000;
+  private int max_distance = 5;
+
+  // access-ordered: least recently used first.
+  private LinkedHashMap<Long, Cached> entries = new LinkedHashMap<Long, Cached>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, Cached> eldest) {
+      return size() > capacity;
+    }
+  };
+
+  private static class Cached {
+    private Result result;
+    private long time;
+
+    private Cached(Result result, long time) {
+      super();
+      this.result = result;
+      this.time = time;
+    }
+  }
+
+  /* Keep at most `n` results */
+  public synchronized void setCapacity(int n) {
+    this.capacity = Math.max(1, n);
+    while (entries.size() > capacity) {
+      Iterator<Long> it = entries.keySet().iterator();
+      it.next();
+      it.remove();
+    }
+  }
+
+  /* Time, in ms, during which found results and "nothing found"
+   * answers are reused. Defaults to 10 minutes and 1 minute.
+   */
+  public synchronized void setTTL(long found, long not_found) {
+    this.ttl = found;
+    this.negative_ttl = not_found;
+  }
+
+  /* Maximum number of differing bits (out of 64) between the hashes
+   * of two frames considered as the same query. Defaults to 5.
+   */
+  public synchronized void setMaxDistance(int bits) {
+    this.max_distance = bits;
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  /* Hash of the `w` x `h` NV21 or GRAY8 frame, to look it up */
+  public static long hash(byte[] data, int w, int h) {
+    return DHash.compute(data, w, h, w);
+  }
+
+  /* Returns the result cached for `hash` at `now` (ms): NOT_FOUND if
+   * the search found nothing, null if nothing is cached.
+   */
+  public synchronized Result get(long hash, long now) {
+    Cached e = lookup(hash, now);
+    return (e != null) ? e.result : null;
+  }
+
+  /* Records the result of the API Search on `hash` at `now`, null if
+   * nothing was found.
+   */
+  public synchronized void put(long hash, Result result, long now) {
+    entries.put(hash, new Cached((result != null) ? result : NOT_FOUND, now));
+  }
+
+  // closest live entry within reach, expired ones are dropped.
+  private Cached lookup(long hash, long now) {
+    Cached best = null;
+    long key = 0;
+    int d = max_distance+1;
+    Iterator<Map.Entry<Long, Cached>> it = entries.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<Long, Cached> e = it.next();
+      Cached v = e.getValue();
+      if (now - v.time >= (v.result != NOT_FOUND ? ttl : negative_ttl)) {
+        it.remove();
+        continue;
+      }
+      int dist = DHash.distance(hash, e.getKey());
+      if (dist < d) {
+        d = dist;
+        best = v;
+        key = e.getKey();
+      }
+    }
+    // mark it as recently used.
+    if (best != null) entries.get(key);
+    return best;
+  }
+
+}
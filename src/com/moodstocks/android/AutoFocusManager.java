@@ -23,21 +23,45 @@
 
 package com.moodstocks.android;
 
+import java.util.List;
+
+import android.annotation.TargetApi;
 import android.hardware.Camera;
+import android.os.Build.VERSION;
+import android.os.Build.VERSION_CODES;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
-/* Looper that requests autofocus every 1.5 seconds. */
+/* Event-driven autofocus controller.
+ * Autofocus runs once when the preview starts, then only when:
+ * - the scene changed and settled (onSceneChange()),
+ * - the frames stay blurry (refocus()),
+ * - a snap needs a focussed frame (requestFocus()).
+ * Cameras supporting a continuous focus mode are left to focus by
+ * themselves: a requested autofocus locks the focus once, then gives
+ * it back to the continuous mode.
+ * The latency of each autofocus is recorded in ScanMetrics (FOCUS).
+ */
 public class AutoFocusManager extends Handler implements Camera.AutoFocusCallback {
 
   public static final String TAG = "Autofocus";
   private Camera camera;
   private boolean is_focus = false;
   private boolean focussing = false;
-  private static int FOCUS_REQUEST;
+  // continuous focus mode, and whether the lens is moving in it.
+  private boolean continuous = false;
+  private volatile boolean moving = false;
+  private long focus_start = 0;
+  private long last_focus = 0;
+  private ScanMetrics metrics = null;
 
-  private static final long FOCUS_DELAY = 1500;
+  private static final int FOCUS_TIMEOUT = 1;
+  // minimum time between two autofocus triggered by the frames
+  private static final long MIN_INTERVAL = 1000;
+  // some devices never call back: give up after this delay
+  private static final long TIMEOUT = 3000;
 
   protected AutoFocusManager(Camera cam) {
     if (cam != null) {
@@ -48,42 +72,142 @@ public class AutoFocusManager extends Handler implements Camera.AutoFocusCallbac
     }
   }
 
+  /* Records the autofocus latencies in `metrics` */
+  protected void setMetrics(ScanMetrics metrics) {
+    this.metrics = metrics;
+  }
+
   protected void start() {
-    if (camera != null) {
-      camera.autoFocus(this);
-      focussing = true;
+    if (camera == null) return;
+    continuous = setContinuousMode();
+    if (continuous) {
+      is_focus = true;
+      if (VERSION.SDK_INT >= VERSION_CODES.JELLY_BEAN)
+        MoveCallback.register(camera, this);
+    }
+    else {
+      autoFocus();
     }
   }
 
   protected void stop() {
-    this.removeMessages(FOCUS_REQUEST);
+    this.removeMessages(FOCUS_TIMEOUT);
+    focussing = false;
   }
 
   protected boolean isFocussed() {
+    if (continuous)
+      return !focussing && !moving;
     return (is_focus && !focussing);
   }
 
+  /* Requests an autofocus if the frames are not focussed, e.g
+   * before a snap.
+   */
   protected void requestFocus() {
-    if (!focussing && !is_focus) {
-      focussing = true;
+    if (!focussing && !isFocussed())
+      autoFocus();
+  }
+
+  /* Requests an autofocus immediately, even if the last one
+   * succeeded, e.g when the frames got blurry.
+   */
+  protected void refocus() {
+    if (!focussing && SystemClock.uptimeMillis()-last_focus >= MIN_INTERVAL)
+      autoFocus();
+  }
+
+  /* Notifies the controller that the scene changed and settled.
+   * Continuous focus modes follow the scene by themselves.
+   */
+  protected void onSceneChange() {
+    if (!continuous)
+      refocus();
+  }
+
+  private void autoFocus() {
+    focussing = true;
+    focus_start = SystemClock.uptimeMillis();
+    this.sendEmptyMessageDelayed(FOCUS_TIMEOUT, TIMEOUT);
+    try {
+      camera.autoFocus(this);
+    } catch (RuntimeException e) {
+      // camera released or in a bad state.
+      Log.e(TAG, "autofocus failed: " + e);
       stop();
-      start();
+    }
+  }
+
+  private boolean setContinuousMode() {
+    try {
+      Camera.Parameters params = camera.getParameters();
+      List<String> modes = params.getSupportedFocusModes();
+      if (modes == null) return false;
+      String mode = null;
+      if (VERSION.SDK_INT >= VERSION_CODES.ICE_CREAM_SANDWICH &&
+          modes.contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE))
+        mode = Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE;
+      else if (modes.contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO))
+        mode = Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO;
+      if (mode == null) return false;
+      params.setFocusMode(mode);
+      camera.setParameters(params);
+      return true;
+    } catch (RuntimeException e) {
+      Log.w(TAG, "cannot set continuous focus mode: " + e);
+      return false;
     }
   }
 
   @Override
   public void handleMessage(Message m) {
-    if (m.what == FOCUS_REQUEST && camera != null) {
-      camera.autoFocus(this);
-      focussing = true;
+    if (m.what == FOCUS_TIMEOUT && focussing) {
+      Log.w(TAG, "autofocus timed out");
+      focussing = false;
+      is_focus = false;
+      last_focus = SystemClock.uptimeMillis();
+      try {
+        camera.cancelAutoFocus();
+      } catch (RuntimeException e) {
+        // nothing to cancel.
+      }
     }
   }
 
   @Override
   public void onAutoFocus(boolean success, Camera camera) {
-    this.sendEmptyMessageDelayed(FOCUS_REQUEST, FOCUS_DELAY);
+    this.removeMessages(FOCUS_TIMEOUT);
+    if (!focussing) return;
     focussing = false;
     is_focus = success;
+    last_focus = SystemClock.uptimeMillis();
+    ScanMetrics m = metrics;
+    if (m != null)
+      m.record(ScanMetrics.Stage.FOCUS, (last_focus-focus_start)*1000000);
+    if (continuous) {
+      // back to continuous focus.
+      camera.cancelAutoFocus();
+    }
+  }
+
+  /* Tracks the lens moves in continuous focus modes */
+  @TargetApi(VERSION_CODES.JELLY_BEAN)
+  private static class MoveCallback implements Camera.AutoFocusMoveCallback {
+    private AutoFocusManager manager;
+
+    private MoveCallback(AutoFocusManager manager) {
+      super();
+      this.manager = manager;
+    }
+
+    private static void register(Camera camera, AutoFocusManager manager) {
+      camera.setAutoFocusMoveCallback(new MoveCallback(manager));
+    }
+
+    @Override
+    public void onAutoFocusMoving(boolean start, Camera camera) {
+      manager.moving = start;
+    }
   }
 
 }
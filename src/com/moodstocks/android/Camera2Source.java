@@ -0,0 +1,549 @@
+/*
+ * Copyright (c) 2012 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.moodstocks.android;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.ImageReader;
+import android.os.Build.VERSION_CODES;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Size;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+import com.moodstocks.android.CameraManager.CameraError;
+
+/* Frame source based on Camera2.
+ * The preview is displayed in the SurfaceView, and YUV_420_888 frames
+ * are read from an ImageReader on a dedicated camera thread. Only the
+ * luma plane is read, straight from the direct ByteBuffer of the
+ * ImageReader into a FrameRing buffer whose chroma plane is neutral:
+ * the chroma is never copied, and the ImageReader image is closed
+ * right away so that the camera never stalls.
+ * Autofocus runs in continuous picture mode. Focus requests lock it
+ * once, then give it back to the continuous mode.
+ */
+@TargetApi(VERSION_CODES.LOLLIPOP)
+class Camera2Source extends FrameSource implements SurfaceHolder.Callback,
+                                                   ImageReader.OnImageAvailableListener {
+
+  public static final String TAG = "Camera2Source";
+  private static Camera2Source instance = null;
+
+  private static final int OPENED = 0;
+  private static final int FAILED = 1;
+  private static final int FRAME = 2;
+  // images held by the ImageReader
+  private static final int MAX_IMAGES = 2;
+  // minimum time between two autofocus triggered by the frames
+  private static final long MIN_INTERVAL = 1000;
+
+  private Context context;
+  private CameraManager.Listener listener;
+  private SurfaceHolder preview_holder;
+  private FrameRing ring = new FrameRing();
+  private HandlerThread thread = null;
+  private android.os.Handler camera_handler = null;
+
+  // camera objects, guarded by `this`
+  private CameraDevice device = null;
+  private CameraCaptureSession session = null;
+  private ImageReader reader = null;
+  private CaptureRequest.Builder request = null;
+  private boolean opening = false;
+
+  private String camera_id = null;
+  private boolean front_facing = false;
+  private int preview_width = 0;
+  private int preview_height = 0;
+
+  private boolean frame_requested = false;
+  private boolean ready = false;
+
+  // autofocus state, written on the camera thread: unfocussed until
+  // the first autofocus state is reported.
+  private volatile boolean focussed = false;
+  private volatile boolean focussing = false;
+  private volatile long focus_start = 0;
+  private volatile long last_focus = 0;
+  private ScanMetrics focus_metrics = null;
+
+  private Camera2Source() {
+    super();
+  }
+
+  /* Singleton accessor */
+  protected static Camera2Source get() {
+    if (Camera2Source.instance == null) {
+      synchronized(Camera2Source.class) {
+        if (Camera2Source.instance == null) {
+          Camera2Source.instance = new Camera2Source();
+        }
+      }
+    }
+    return Camera2Source.instance;
+  }
+
+  /* Returns true if the device has a camera with a full Camera2
+   * implementation. Legacy implementations only wrap the old
+   * Camera API, which CameraManager uses directly.
+   */
+  protected static boolean isSupported(Context c) {
+    try {
+      android.hardware.camera2.CameraManager m = manager(c);
+      String id = findCamera(m);
+      if (id == null) return false;
+      Integer level = m.getCameraCharacteristics(id).get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+      return level != null && level.intValue() != CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY;
+    } catch (CameraAccessException e) {
+      return false;
+    } catch (RuntimeException e) {
+      return false;
+    }
+  }
+
+  //-------------
+  // FrameSource
+  //-------------
+  @Override
+  protected void start(Context c, CameraManager.Listener l, SurfaceView surface) {
+    ready = false;
+    frame_requested = false;
+    context = c.getApplicationContext();
+    listener = l;
+    preview_holder = surface.getHolder();
+    preview_holder.addCallback(this);
+    if (thread == null) {
+      thread = new HandlerThread(TAG);
+      thread.start();
+      camera_handler = new android.os.Handler(thread.getLooper());
+    }
+  }
+
+  @Override
+  protected void stop() {
+    close();
+    removeMessages(FRAME);
+    ring.clear();
+    ready = false;
+    frame_requested = false;
+    focussing = false;
+    focussed = false;
+    // the surface may change: sizes are negotiated again.
+    preview_width = 0;
+    preview_height = 0;
+  }
+
+  @Override
+  protected void setBufferCount(int n) {
+    ring.setCapacity(n);
+  }
+
+  @Override
+  protected void requestNewFrame() {
+    if (!ready)
+      frame_requested = true;
+    else
+      ring.queueParked();
+  }
+
+  @Override
+  protected void releaseFrame(byte[] data) {
+    ring.release(data, true);
+  }
+
+  @Override
+  protected void parkFrame(byte[] data) {
+    ring.release(data, false);
+  }
+
+  @Override
+  protected boolean isFocussed() {
+    return focussed && !focussing;
+  }
+
+  @Override
+  protected void requestFocus() {
+    if (!focussing && !focussed)
+      autoFocus();
+  }
+
+  @Override
+  protected void refocus() {
+    if (!focussing && SystemClock.uptimeMillis()-last_focus >= MIN_INTERVAL)
+      autoFocus();
+  }
+
+  @Override
+  protected void onSceneChange() {
+    // the continuous mode follows the scene by itself.
+  }
+
+  @Override
+  protected void setFocusMetrics(ScanMetrics metrics) {
+    this.focus_metrics = metrics;
+  }
+
+  //------------------------
+  // SurfaceHolder.Callback
+  //------------------------
+  @Override
+  public void surfaceCreated(SurfaceHolder holder) {
+    // void implementation
+  }
+
+  @Override
+  public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+    synchronized (this) {
+      if (opening || device != null) return;
+    }
+    if (preview_width == 0 && !configure(width, height)) {
+      listener.onCameraOpenFailed(CameraError.NO_CAMERA);
+      return;
+    }
+    // the preview surface must have one of the camera output sizes:
+    // the camera is opened once the surface is resized.
+    if (width != preview_width || height != preview_height) {
+      holder.setFixedSize(preview_width, preview_height);
+      return;
+    }
+    open();
+  }
+
+  @Override
+  public void surfaceDestroyed(SurfaceHolder holder) {
+    stop();
+  }
+
+  @Override
+  public void handleMessage(Message msg) {
+    switch (msg.what) {
+      case OPENED:
+        synchronized (this) {
+          // stopped in the meantime.
+          if (session == null) break;
+        }
+        ring.allocateGray(preview_width, preview_height);
+        listener.onPreviewInfoFound(preview_width, preview_height, front_facing);
+        ready = true;
+        if (frame_requested)
+          requestNewFrame();
+        break;
+      case FAILED:
+        synchronized (this) {
+          if (!opening) break;
+        }
+        close();
+        listener.onCameraOpenFailed(msg.arg1);
+        break;
+      case FRAME:
+        byte[] data = (byte[])msg.obj;
+        if (ring.deliver(data))
+          listener.onPreviewFrame(data, null);
+        break;
+    }
+  }
+
+  //-----------------------------------
+  // ImageReader.OnImageAvailableListener
+  //-----------------------------------
+  /* Runs on the camera thread */
+  @Override
+  public void onImageAvailable(ImageReader r) {
+    android.media.Image image = r.acquireLatestImage();
+    if (image == null) return;
+    // no buffer queued: the frame is dropped.
+    byte[] data = ring.take();
+    if (data != null) {
+      android.media.Image.Plane y = image.getPlanes()[0];
+      copyLuma(y.getBuffer(), y.getRowStride(), data, preview_width, preview_height);
+    }
+    image.close();
+    if (data != null)
+      obtainMessage(FRAME, data).sendToTarget();
+  }
+
+  /* Copies the `w` x `h` luma plane from `src`, with `stride` bytes
+   * per row, into the first `w` x `h` bytes of `dst`.
+   */
+  private static void copyLuma(ByteBuffer src, int stride, byte[] dst, int w, int h) {
+    if (stride == w) {
+      src.get(dst, 0, w*h);
+      return;
+    }
+    // skip the row padding
+    for (int y = 0; y < h; ++y) {
+      src.position(y*stride);
+      src.get(dst, y*w, w);
+    }
+  }
+
+  //---------
+  // Camera2
+  //---------
+  private static android.hardware.camera2.CameraManager manager(Context c) {
+    return (android.hardware.camera2.CameraManager)c.getSystemService(Context.CAMERA_SERVICE);
+  }
+
+  // first back camera, first front camera otherwise.
+  private static String findCamera(android.hardware.camera2.CameraManager m)
+      throws CameraAccessException {
+    String front = null;
+    for (String id : m.getCameraIdList()) {
+      Integer facing = m.getCameraCharacteristics(id).get(CameraCharacteristics.LENS_FACING);
+      if (facing == null) continue;
+      if (facing.intValue() == CameraCharacteristics.LENS_FACING_BACK)
+        return id;
+      if (front == null && facing.intValue() == CameraCharacteristics.LENS_FACING_FRONT)
+        front = id;
+    }
+    return front;
+  }
+
+  // compute best preview size: highest possible
+  // with ratio within 10% of screen resolution
+  private boolean configure(int surface_width, int surface_height) {
+    Size[] sizes;
+    try {
+      android.hardware.camera2.CameraManager m = manager(context);
+      camera_id = findCamera(m);
+      if (camera_id == null) return false;
+      CameraCharacteristics ch = m.getCameraCharacteristics(camera_id);
+      Integer facing = ch.get(CameraCharacteristics.LENS_FACING);
+      front_facing = (facing != null && facing.intValue() == CameraCharacteristics.LENS_FACING_FRONT);
+      StreamConfigurationMap map = ch.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+      sizes = map.getOutputSizes(ImageFormat.YUV_420_888);
+    } catch (CameraAccessException e) {
+      Log.e(TAG, "cannot read camera characteristics: " + e);
+      return false;
+    }
+    if (sizes == null || sizes.length == 0) return false;
+    float ratio = (float)surface_height/surface_width;
+    int best_w = 0;
+    int best_h = 0;
+    for (Size s : sizes) {
+      int w = s.getWidth();
+      int h = s.getHeight();
+      if (w > 1280 || h > 1280) continue;
+      float r = (float)w/(float)h;
+      if (((r-ratio)*(r-ratio))/(ratio*ratio) < 0.01 && w > best_w) {
+        best_w = w;
+        best_h = h;
+      }
+    }
+    // nothing found with good ratio? take biggest.
+    if (best_w == 0) {
+      for (Size s : sizes) {
+        if (s.getWidth() > best_w) {
+          best_w = s.getWidth();
+          best_h = s.getHeight();
+        }
+      }
+    }
+    preview_width = best_w;
+    preview_height = best_h;
+    return true;
+  }
+
+  private synchronized void open() {
+    opening = true;
+    try {
+      manager(context).openCamera(camera_id, new CameraDevice.StateCallback() {
+        @Override
+        public void onOpened(CameraDevice d) {
+          synchronized (Camera2Source.this) {
+            if (!opening) {
+              // stopped in the meantime.
+              d.close();
+              return;
+            }
+            device = d;
+          }
+          createSession(d);
+        }
+
+        @Override
+        public void onDisconnected(CameraDevice d) {
+          d.close();
+          fail(CameraError.OPEN_ERROR);
+        }
+
+        @Override
+        public void onError(CameraDevice d, int error) {
+          d.close();
+          fail(CameraError.OPEN_ERROR);
+        }
+      }, camera_handler);
+    } catch (CameraAccessException e) {
+      fail(CameraError.OPEN_ERROR);
+    } catch (SecurityException e) {
+      fail(CameraError.OPEN_ERROR);
+    }
+  }
+
+  /* Runs on the camera thread */
+  private void createSession(CameraDevice d) {
+    try {
+      ImageReader r = ImageReader.newInstance(preview_width, preview_height,
+                                              ImageFormat.YUV_420_888, MAX_IMAGES);
+      r.setOnImageAvailableListener(this, camera_handler);
+      final CaptureRequest.Builder b = d.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+      b.addTarget(preview_holder.getSurface());
+      b.addTarget(r.getSurface());
+      b.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+      synchronized (this) {
+        reader = r;
+        request = b;
+      }
+      d.createCaptureSession(Arrays.asList(preview_holder.getSurface(), r.getSurface()),
+                             new CameraCaptureSession.StateCallback() {
+        @Override
+        public void onConfigured(CameraCaptureSession s) {
+          synchronized (Camera2Source.this) {
+            if (device == null) {
+              s.close();
+              return;
+            }
+            session = s;
+            try {
+              s.setRepeatingRequest(b.build(), focus_callback, camera_handler);
+            } catch (CameraAccessException e) {
+              fail(CameraError.OPEN_ERROR);
+              return;
+            }
+          }
+          obtainMessage(OPENED).sendToTarget();
+        }
+
+        @Override
+        public void onConfigureFailed(CameraCaptureSession s) {
+          fail(CameraError.OPEN_ERROR);
+        }
+      }, camera_handler);
+    } catch (CameraAccessException e) {
+      fail(CameraError.OPEN_ERROR);
+    } catch (IllegalStateException e) {
+      // device closed in the meantime.
+    }
+  }
+
+  private void fail(int e) {
+    Log.e(TAG, "camera failed");
+    obtainMessage(FAILED, e, 0).sendToTarget();
+  }
+
+  private synchronized void close() {
+    opening = false;
+    if (session != null) {
+      session.close();
+      session = null;
+    }
+    if (device != null) {
+      device.close();
+      device = null;
+    }
+    if (reader != null) {
+      reader.close();
+      reader = null;
+    }
+    request = null;
+  }
+
+  //-----------
+  // Autofocus
+  //-----------
+  private synchronized void autoFocus() {
+    if (session == null || request == null) return;
+    focussing = true;
+    focus_start = SystemClock.uptimeMillis();
+    if (!trigger(CaptureRequest.CONTROL_AF_TRIGGER_START))
+      focussing = false;
+  }
+
+  // sends a one-shot autofocus trigger
+  private synchronized boolean trigger(int t) {
+    if (session == null || request == null) return false;
+    try {
+      request.set(CaptureRequest.CONTROL_AF_TRIGGER, t);
+      session.capture(request.build(), focus_callback, camera_handler);
+      request.set(CaptureRequest.CONTROL_AF_TRIGGER, CaptureRequest.CONTROL_AF_TRIGGER_IDLE);
+      return true;
+    } catch (CameraAccessException e) {
+      Log.e(TAG, "autofocus failed: " + e);
+      return false;
+    } catch (IllegalStateException e) {
+      // session closed in the meantime.
+      return false;
+    }
+  }
+
+  /* Tracks the autofocus state, on the camera thread */
+  private final CameraCaptureSession.CaptureCallback focus_callback = new CameraCaptureSession.CaptureCallback() {
+    @Override
+    public void onCaptureCompleted(CameraCaptureSession s, CaptureRequest r, TotalCaptureResult result) {
+      Integer state = result.get(CaptureResult.CONTROL_AF_STATE);
+      if (state == null) return;
+      switch (state.intValue()) {
+        case CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED:
+        case CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED:
+          if (focussing) {
+            focussing = false;
+            last_focus = SystemClock.uptimeMillis();
+            ScanMetrics m = focus_metrics;
+            if (m != null)
+              m.record(ScanMetrics.Stage.FOCUS, (last_focus-focus_start)*1000000);
+            // back to continuous focus.
+            trigger(CaptureRequest.CONTROL_AF_TRIGGER_CANCEL);
+          }
+          focussed = (state.intValue() == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED);
+          break;
+        case CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED:
+          focussed = true;
+          break;
+        case CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN:
+        case CaptureResult.CONTROL_AF_STATE_ACTIVE_SCAN:
+          focussed = false;
+          break;
+        default:
+          break;
+      }
+    }
+  };
+
+}
@@ -33,21 +33,21 @@ import java.util.List;
 import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.BitmapFactory;
-import android.graphics.ImageFormat;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.hardware.Camera;
-import android.hardware.Camera.Parameters;
 import android.hardware.Camera.Size;
-import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
 import android.view.Gravity;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 
-/* Wrapper class around the camera. */
-public class CameraManager extends Handler implements SurfaceHolder.Callback, Camera.PreviewCallback {
+/* Wrapper class around the camera, based on android.hardware.Camera.
+ * This is the frame source used on devices without a full Camera2
+ * implementation (see FrameSource).
+ */
+public class CameraManager extends FrameSource implements SurfaceHolder.Callback, Camera.PreviewCallback {
 
   public static interface Listener extends Camera.PreviewCallback {
     /* notifies the listener of the camera frames size */
@@ -65,12 +65,15 @@ public class CameraManager extends Handler implements SurfaceHolder.Callback, Ca
   public static final String TAG = "CameraManager";
   private static CameraManager instance = null;
   private Listener listener;
+  private Context context;
+  private CameraSession session = null;
   private Camera cam;
   private SurfaceView preview;
   private Method setBackground = null;
   private BitmapDrawable camera_waiter;
   private SurfaceHolder preview_holder;
   private AutoFocusManager focus_manager;
+  private ScanMetrics focus_metrics = null;
   private List<Size> banned;
     
   private static boolean front_facing = false;
@@ -78,7 +81,7 @@ public class CameraManager extends Handler implements SurfaceHolder.Callback, Ca
   private int surface_height;
   private int preview_width;
   private int preview_height;
-  private byte[] buffer;
+  private FrameRing ring;
 
   private boolean frame_requested = false;
   private boolean ready = false;
@@ -88,6 +91,7 @@ public class CameraManager extends Handler implements SurfaceHolder.Callback, Ca
     super();
     banned = new ArrayList<Size>();
     banned.clear();   
+    ring = new FrameRing();
      
     /* For compatibility purposes, we use reflection here to detect which
      * of SurfaceView.setBackground() or SurfaceView.setBackgroundDrawable()
@@ -124,10 +128,12 @@ public class CameraManager extends Handler implements SurfaceHolder.Callback, Ca
    * - A WindowManager to get the screen dimensions.
    */
   @SuppressWarnings("deprecation") // necessary to support Android 2.3+
+  @Override
   protected void start(Context c, Listener l, SurfaceView surface) {
     ready = false;
     frame_requested = false;
     listener = l;
+    context = c;
     preview = surface;
     preview_holder = surface.getHolder();
     preview_holder.setType(SurfaceHolder.SURFACE_TYPE_PUSH_BUFFERS);
@@ -138,6 +144,7 @@ public class CameraManager extends Handler implements SurfaceHolder.Callback, Ca
   }
 
   /* Stops the camera and preview */
+  @Override
   protected void stop() {
     if (focus_manager != null)
       focus_manager.stop();
@@ -148,108 +155,100 @@ public class CameraManager extends Handler implements SurfaceHolder.Callback, Ca
       cam.release();
       cam = null;
     }
+    else if (session != null) {
+      // still opening: release the camera once opened.
+      session.release();
+    }
+    session = null;
+    ring.clear();
     ready = false;
     frame_requested = false;
   }
 
-  /* Asks for a new frame to be delivered
-   * to the listener.
+  /* Sets the number of preview buffers cycled between the camera
+   * and the listener. Takes effect the next time the preview starts.
    */
+  @Override
+  protected void setBufferCount(int n) {
+    ring.setCapacity(n);
+  }
+
+  /* Asks for new frames to be delivered
+   * to the listener: every parked buffer is
+   * handed back to the camera.
+   */
+  @Override
   protected void requestNewFrame() {
     if (!ready)
       frame_requested = true;
     else
-      cam.addCallbackBuffer(buffer);
+      ring.queueParked();
+  }
+
+  /* Gives a frame received in onPreviewFrame() back to the
+   * camera so it can be filled again. May be called from any thread.
+   */
+  @Override
+  protected void releaseFrame(byte[] data) {
+    ring.release(data, true);
+  }
+
+  /* Gives a frame received in onPreviewFrame() back without
+   * queueing it: it will only be filled again after the next
+   * call to requestNewFrame(). May be called from any thread.
+   */
+  @Override
+  protected void parkFrame(byte[] data) {
+    ring.release(data, false);
   }
 
   /* check if the AutoFocusManager is currently
    * focussing, or if the image is already focussed.
    */
+  @Override
   protected boolean isFocussed() {
     return focus_manager.isFocussed();
   }
 
-  /* Interrupts the AutoFocusManager loop and
-   * requests an autofocus immediately if it is
-   * necessary.
+  /* Requests an autofocus immediately if
+   * it is necessary.
    */
+  @Override
   protected void requestFocus() {
     focus_manager.requestFocus();
   }
 
-  private static Camera getCameraInstance() 
-      throws Exception {
-    Camera.CameraInfo info = new Camera.CameraInfo();
-    int nbCameras = Camera.getNumberOfCameras();
-    int back = -1;
-    int front = -1;
-    for (int i = 0; i < nbCameras; ++i) {
-      Camera.getCameraInfo(i, info);
-      if (back < 0 && info.facing == Camera.CameraInfo.CAMERA_FACING_BACK)
-        back = i;
-      if (front < 0 && info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT)
-        front = i;
-    }
-    Camera c = null;
-    if (back >= 0 || front >= 0) {
-      int camera_id;
-      if (back >= 0) {
-        camera_id = back;
-        front_facing = false;
-      }
-      else {
-        camera_id = front;
-        front_facing = true;
-      }
-      c = Camera.open(camera_id); // attempt to get a Camera instance
-    }
-    return c;
+  /* Requests an autofocus immediately, unless one is running */
+  @Override
+  protected void refocus() {
+    if (focus_manager != null)
+      focus_manager.refocus();
   }
 
-  // compute best preview size: highest possible
-  // with ratio within 10% of screen resolution
-  private void findBestPreviewSize() {
-    Parameters params  = cam.getParameters();
-    float ratio = (float)surface_height/surface_width;
-    // available preview sizes:
-    List<Size> prev_sizes = params.getSupportedPreviewSizes();
-    for (Size s : banned) {
-      prev_sizes.remove(s);
-    }
-    int best_w = 0;
-    int best_h = 0;
-    for (Size s : prev_sizes) {
-      int w = s.width;
-      int h = s.height;
-      if (w > 1280 || h > 1280) continue;
-      float r = (float)w/(float)h;
-      if (((r-ratio)*(r-ratio))/(ratio*ratio) < 0.01 && w > best_w) {
-        best_w = w;
-        best_h = h;
-      }
-    }
-    // nothing found with good ratio? take biggest.
-    // should rarely (never?) happen.
-    if (best_w == 0) {
-      for (Size s : prev_sizes) {
-        int w = s.width;
-        if (w > best_w) {
-          best_w = w;
-          best_h = s.height;
-        }
-      }
-    }
-    // set the values
-    preview_width = best_w;
-    preview_height = best_h;
-    params.setPreviewSize(preview_width, preview_height);
-    // we force the preview format to NV21
-    params.setPreviewFormat(ImageFormat.NV21);
-    cam.setParameters(params);
-    // pre-allocate buffer of size #pixels x 3/2
+  /* Notifies the autofocus that the scene changed and settled */
+  @Override
+  protected void onSceneChange() {
+    if (focus_manager != null)
+      focus_manager.onSceneChange();
+  }
+
+  /* Records the autofocus latencies in `metrics` */
+  @Override
+  protected void setFocusMetrics(ScanMetrics metrics) {
+    this.focus_metrics = metrics;
+    if (focus_manager != null)
+      focus_manager.setMetrics(metrics);
+  }
+
+  // notify the listener of the preview size, and
+  // allocate the matching buffers.
+  private void onPreviewSizeFound() {
+    preview_width = session.getPreviewWidth();
+    preview_height = session.getPreviewHeight();
+    // pre-allocate buffers of size #pixels x 3/2
     // as NV21 uses #pixels for grayscale and twice
     // #pixels/4 for chroma.
-    buffer = new byte[preview_width*preview_height*3/2];
+    ring.allocate(cam, preview_width*preview_height*3/2);
     // notify Listener
     listener.onPreviewInfoFound(preview_width, preview_height, front_facing);
   }
@@ -262,57 +261,44 @@ public class CameraManager extends Handler implements SurfaceHolder.Callback, Ca
     
     surface_width = width;
     surface_height = height;
-        
-    /* This thread allows to open the camera asynchronously, as advised in the Android documentation.
+
+    // camera already opened, or being opened.
+    if (session != null) return;
+
+    /* The session opens the camera asynchronously, as advised in the Android documentation.
      * (See http://developer.android.com/reference/android/hardware/Camera.html#open(int) )
      * Upon completion, it sends a message to the handler of this class, right below this function.
      */
-    
-    new Thread() {
-      Handler h;
-
-      public Thread setHandler(Handler h) {
-        this.h = h;
-        return this;
-      }
-
-      @Override
-      public void run() {
-        int error = CameraError.SUCCESS;
-        try {
-          cam = getCameraInstance();
-        } catch (Exception err) {
-          error = CameraError.OPEN_ERROR;
-        }
-        if (error == CameraError.SUCCESS && cam == null)
-          error = CameraError.NO_CAMERA;
-        Integer success = Integer.valueOf(error);
-        Message.obtain(h, readyMsg, success).sendToTarget();
-      }
-
-    }.setHandler(this).start();
+    session = new CameraSession(context, this, readyMsg, surface_width, surface_height);
+    session.open();
   }
   
 
   @Override
   public void handleMessage(Message msg) {
     if (msg.what == readyMsg) {
-      int e = ((Integer)msg.obj).intValue();
+      // stopped in the meantime: the session released the camera.
+      if (msg.obj != session) return;
+      int e = session.getError();
       if (e == CameraError.SUCCESS) {
+        cam = session.getCamera();
+        front_facing = session.isFrontFacing();
         startPreview();
       }
       else {
+        session = null;
         listener.onCameraOpenFailed(e);
       }
     }
   }
 
   private void startPreview() {
-    findBestPreviewSize();
+    onPreviewSizeFound();
     cam.setPreviewCallback(this);
     // adapt preview orientation or portrait mode
     cam.setDisplayOrientation(90);
     focus_manager = new AutoFocusManager(cam);
+    focus_manager.setMetrics(focus_metrics);
     try {
       cam.setPreviewDisplay(preview_holder);
     } catch (IOException e) {
@@ -358,14 +344,24 @@ public class CameraManager extends Handler implements SurfaceHolder.Callback, Ca
    *******************************************************************/
   @Override
   public void onPreviewFrame(byte[] data, Camera camera) {
+    if (ready) {
+      // buffered frame: ownership goes to the listener until released.
+      if (ring.deliver(data))
+        listener.onPreviewFrame(data, camera);
+      return;
+    }
     if (data.length != 3*preview_width*preview_height/2) {
       Size s = cam.new Size(preview_width,preview_height);
       banned.add(s);
-      findBestPreviewSize();
+      session.forget();
+      session.negotiate(banned);
+      onPreviewSizeFound();
     }
     else {
-      cam.setPreviewCallbackWithBuffer(listener);
+      cam.setPreviewCallbackWithBuffer(this);
       ready = true;
+      // this size works: use it directly next time.
+      session.save();
       if (frame_requested)
         requestNewFrame();
     }
@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2012 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.moodstocks.android;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.hardware.Camera.Parameters;
+import android.hardware.Camera.Size;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Message;
+import android.util.Log;
+
+/* Opens the camera and negotiates its preview size off the main thread.
+ * All sessions run on a single long-lived thread, so opening the camera
+ * never spawns a thread. This thread has no Looper: as per the Camera
+ * documentation, the camera callbacks are still delivered on the main
+ * thread.
+ * The negotiated preview size is saved per camera and surface size, so
+ * that the next sessions skip probing the supported sizes. Saved sizes
+ * are dropped when the system changes (e.g after an update).
+ */
+final class CameraSession implements Runnable {
+
+  public static final String TAG = "CameraSession";
+  private static final String PREFS = "ms_camera";
+  private static final String FINGERPRINT = "fingerprint";
+  private static ExecutorService thread = null;
+
+  private final SharedPreferences prefs;
+  private final Handler target;
+  private final int what;
+  private final int surface_width;
+  private final int surface_height;
+
+  private volatile Camera camera = null;
+  private volatile int error = CameraManager.CameraError.SUCCESS;
+  private int camera_id = -1;
+  private boolean front_facing = false;
+  private int preview_width = 0;
+  private int preview_height = 0;
+  private boolean cached = false;
+
+  /* Session opening the camera for a `w` x `h` surface. `target`
+   * receives a `what` message holding the session once done.
+   */
+  protected CameraSession(Context c, Handler target, int what, int w, int h) {
+    this.prefs = c.getApplicationContext().getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+    this.target = target;
+    this.what = what;
+    this.surface_width = w;
+    this.surface_height = h;
+  }
+
+  /* Opens the camera on the camera thread */
+  protected void open() {
+    thread().execute(this);
+  }
+
+  /* Releases the camera on the camera thread, e.g if the session ended
+   * before the camera was opened.
+   */
+  protected void release() {
+    thread().execute(new Runnable() {
+      @Override
+      public void run() {
+        Camera c = camera;
+        camera = null;
+        if (c != null)
+          c.release();
+      }
+    });
+  }
+
+  @Override
+  public void run() {
+    try {
+      camera = getCameraInstance();
+      if (camera == null)
+        error = CameraManager.CameraError.NO_CAMERA;
+      else
+        negotiate(null);
+    } catch (Exception e) {
+      Log.e(TAG, "cannot open camera: " + e);
+      if (camera != null) {
+        camera.release();
+        camera = null;
+      }
+      error = CameraManager.CameraError.OPEN_ERROR;
+    }
+    Message.obtain(target, what, this).sendToTarget();
+  }
+
+  protected Camera getCamera() {
+    return camera;
+  }
+
+  protected int getError() {
+    return error;
+  }
+
+  protected boolean isFrontFacing() {
+    return front_facing;
+  }
+
+  protected int getPreviewWidth() {
+    return preview_width;
+  }
+
+  protected int getPreviewHeight() {
+    return preview_height;
+  }
+
+  /* Sets the preview size and format of the camera. The saved size
+   * is used if any, unless `banned` sizes are given, in which case
+   * the supported sizes are probed again.
+   */
+  protected void negotiate(List<Size> banned) {
+    Parameters params = camera.getParameters();
+    String key = key();
+    cached = false;
+    if (banned == null || banned.isEmpty()) {
+      long size = prefs.getLong(key, 0);
+      if (size != 0) {
+        preview_width = (int)(size >>> 32);
+        preview_height = (int)size;
+        cached = true;
+      }
+    }
+    if (!cached) {
+      findBestPreviewSize(params.getSupportedPreviewSizes(), banned);
+    }
+    params.setPreviewSize(preview_width, preview_height);
+    // we force the preview format to NV21
+    params.setPreviewFormat(ImageFormat.NV21);
+    camera.setParameters(params);
+  }
+
+  /* Saves the preview size once it proved to work */
+  protected void save() {
+    if (cached) return;
+    prefs.edit()
+         .putString(FINGERPRINT, Build.FINGERPRINT)
+         .putLong(key(), ((long)preview_width << 32) | (preview_height & 0xffffffffL))
+         .apply();
+    cached = true;
+  }
+
+  /* Forgets the saved preview size, e.g because it does not work */
+  protected void forget() {
+    prefs.edit().remove(key()).apply();
+    cached = false;
+  }
+
+  private String key() {
+    if (!Build.FINGERPRINT.equals(prefs.getString(FINGERPRINT, Build.FINGERPRINT))) {
+      // system changed: saved sizes may not be valid anymore.
+      prefs.edit().clear().apply();
+    }
+    return "size_" + camera_id + "_" + surface_width + "x" + surface_height;
+  }
+
+  // compute best preview size: highest possible
+  // with ratio within 10% of screen resolution
+  private void findBestPreviewSize(List<Size> prev_sizes, List<Size> banned) {
+    float ratio = (float)surface_height/surface_width;
+    if (banned != null) {
+      for (Size s : banned) {
+        prev_sizes.remove(s);
+      }
+    }
+    int best_w = 0;
+    int best_h = 0;
+    for (Size s : prev_sizes) {
+      int w = s.width;
+      int h = s.height;
+      if (w > 1280 || h > 1280) continue;
+      float r = (float)w/(float)h;
+      if (((r-ratio)*(r-ratio))/(ratio*ratio) < 0.01 && w > best_w) {
+        best_w = w;
+        best_h = h;
+      }
+    }
+    // nothing found with good ratio? take biggest.
+    // should rarely (never?) happen.
+    if (best_w == 0) {
+      for (Size s : prev_sizes) {
+        int w = s.width;
+        if (w > best_w) {
+          best_w = w;
+          best_h = s.height;
+        }
+      }
+    }
+    preview_width = best_w;
+    preview_height = best_h;
+  }
+
+  private Camera getCameraInstance() {
+    Camera.CameraInfo info = new Camera.CameraInfo();
+    int nbCameras = Camera.getNumberOfCameras();
+    int back = -1;
+    int front = -1;
+    for (int i = 0; i < nbCameras; ++i) {
+      Camera.getCameraInfo(i, info);
+      if (back < 0 && info.facing == Camera.CameraInfo.CAMERA_FACING_BACK)
+        back = i;
+      if (front < 0 && info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT)
+        front = i;
+    }
+    Camera c = null;
+    if (back >= 0 || front >= 0) {
+      if (back >= 0) {
+        camera_id = back;
+        front_facing = false;
+      }
+      else {
+        camera_id = front;
+        front_facing = true;
+      }
+      c = Camera.open(camera_id); // attempt to get a Camera instance
+    }
+    return c;
+  }
+
+  // long-lived camera thread, without Looper.
+  private static synchronized ExecutorService thread() {
+    if (thread == null) {
+      ThreadPoolExecutor t = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+          new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread th = new Thread(r, TAG);
+          th.setDaemon(true);
+          return th;
+        }
+      });
+      thread = t;
+    }
+    return thread;
+  }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2012 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.moodstocks.android;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/* Cancellation signal shared by an operation (API Search, Sync,
+ * snap) and the code that may abort it.
+ * A token is cancelled explicitly with cancel(), or when its
+ * deadline expires if it was given a latency budget. Either way
+ * the hooks registered with onCancel() run once, e.g to abort the
+ * native work of the operation.
+ * Operations call dispose() once they end normally, which disarms
+ * the deadline and drops the hooks.
+ */
+public class CancellationToken {
+
+  public static final String TAG = "CancellationToken";
+
+  // fires the deadlines of all tokens.
+  private static ScheduledExecutorService timer = null;
+
+  private volatile boolean cancelled = false;
+  private volatile boolean expired = false;
+  private boolean disposed = false;
+  private ScheduledFuture<?> alarm = null;
+  private List<Runnable> hooks = new CopyOnWriteArrayList<Runnable>();
+
+  /* Creates a token without deadline */
+  public CancellationToken() {
+    super();
+  }
+
+  /* Creates a token cancelled `budget` ms from now, if positive */
+  public CancellationToken(long budget) {
+    super();
+    if (budget > 0) {
+      alarm = timer().schedule(new Runnable() {
+        @Override
+        public void run() {
+          synchronized (CancellationToken.this) {
+            if (!cancelled && !disposed) expired = true;
+          }
+          cancel();
+        }
+      }, budget, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private static synchronized ScheduledExecutorService timer() {
+    if (timer == null) {
+      ScheduledThreadPoolExecutor t = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread th = new Thread(r, TAG);
+          th.setDaemon(true);
+          return th;
+        }
+      });
+      timer = t;
+    }
+    return timer;
+  }
+
+  /* Cancels the operation. Only the first call has an effect. */
+  public void cancel() {
+    synchronized (this) {
+      if (cancelled || disposed) return;
+      cancelled = true;
+      if (alarm != null && !expired) alarm.cancel(false);
+    }
+    // a hook added concurrently by onCancel() runs only once.
+    for (Runnable r : hooks) {
+      if (hooks.remove(r))
+        r.run();
+    }
+  }
+
+  /* Releases the token once the operation has ended: the deadline
+   * no longer fires, the hooks are dropped and later calls to
+   * cancel() have no effect. Does not cancel the token.
+   */
+  public void dispose() {
+    synchronized (this) {
+      if (disposed) return;
+      disposed = true;
+      if (alarm != null) alarm.cancel(false);
+      alarm = null;
+    }
+    hooks.clear();
+  }
+
+  /* Returns true if the operation was cancelled or ran out of time */
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  /* Returns true if the operation was cancelled by its deadline */
+  public boolean isExpired() {
+    return expired;
+  }
+
+  /* Runs `hook` when the token is cancelled, right away if it
+   * already is. Hooks run on the thread calling cancel(), or on
+   * a timer thread for deadlines.
+   */
+  public void onCancel(Runnable hook) {
+    synchronized (this) {
+      if (disposed) return;
+    }
+    hooks.add(hook);
+    if (cancelled && hooks.remove(hook))
+      hook.run();
+  }
+
+  /* The error reporting the cancellation: TIMEOUT for an expired
+   * deadline, ABORT otherwise.
+   */
+  public MoodstocksError error() {
+    if (expired)
+      return new MoodstocksError("deadline expired", MoodstocksError.Code.TIMEOUT);
+    return new MoodstocksError("operation cancelled", MoodstocksError.Code.ABORT);
+  }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2012 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.moodstocks.android;
+
+/* 64-bit difference hash of a luma plane: the plane is reduced to
+ * a 9x8 grid of average values, and each bit tells whether a cell
+ * is brighter than its right neighbour. Two views of the same scene
+ * give hashes at a small Hamming distance, see distance().
+ */
+final class DHash {
+
+  private static final int COLS = 9;
+  private static final int ROWS = 8;
+  // samples per cell side
+  private static final int SAMPLES = 4;
+
+  private DHash() {
+  }
+
+  /* Hash of the `w` x `h` luma plane at the start of `data`
+   * (NV21 or GRAY8), with `bpr` bytes per row.
+   */
+  static long compute(byte[] data, int w, int h, int bpr) {
+    int[] cells = new int[COLS*ROWS];
+    int cw = w/COLS;
+    int ch = h/ROWS;
+    int sx = Math.max(1, cw/SAMPLES);
+    int sy = Math.max(1, ch/SAMPLES);
+    for (int r = 0; r < ROWS; ++r) {
+      for (int c = 0; c < COLS; ++c) {
+        int sum = 0;
+        for (int y = r*ch; y < (r+1)*ch; y += sy) {
+          int row = y*bpr;
+          for (int x = c*cw; x < (c+1)*cw; x += sx)
+            sum += data[row+x] & 0xff;
+        }
+        cells[r*COLS+c] = sum;
+      }
+    }
+    long hash = 0;
+    for (int r = 0; r < ROWS; ++r) {
+      for (int c = 0; c < COLS-1; ++c) {
+        hash <<= 1;
+        if (cells[r*COLS+c] > cells[r*COLS+c+1])
+          hash |= 1;
+      }
+    }
+    return hash;
+  }
+
+  /* Number of differing bits between two hashes, 0 to 64 */
+  static int distance(long a, long b) {
+    return Long.bitCount(a ^ b);
+  }
+
+}
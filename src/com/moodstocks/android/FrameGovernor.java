@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2012 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.moodstocks.android;
+
+/* Paces the frames scanned by a ScannerSession.
+ * It runs at full speed as long as something happens (a result is
+ * found or the scene moves), then slows down progressively when the
+ * scene stays unchanged with nothing found, and keeps a minimum
+ * delay between frames while the device is hot or low on battery.
+ * Any motion brings it back to full speed.
+ */
+public class FrameGovernor {
+
+  public static final String TAG = "FrameGovernor";
+
+  /* measured stages of a scan */
+  public static final class Stage {
+    public static final int LOCK = 0;         // checking the locked result
+    public static final int RECOGNITION = 1;  // image search and barcode decoding
+    public static final int TOTAL = 2;        // whole scan of a frame
+    public static final int NB = 3;
+  }
+
+  // time without result nor motion before slowing down, in ms
+  private long idle_timeout = 3000;
+  // longest delay between two frames, in ms
+  private long max_delay = 1000;
+  // minimum delay between two frames under pressure, in ms
+  private long pressure_delay = 250;
+  // mean luma difference above which the scene is considered moving
+  private float motion_threshold = 6.0f;
+  // battery temperature, in tenths of degree Celsius, considered hot
+  private int hot_temperature = 400;
+  // battery level, in percent, considered low when unplugged
+  private int low_battery = 15;
+
+  // smoothed stage latencies, in ms
+  private final float[] latency = new float[Stage.NB];
+  private long last_activity = 0;
+  private long delay = 0;
+  private boolean pressure = false;
+
+  public FrameGovernor() {
+    super();
+  }
+
+  /* Time without result nor motion, in ms, before slowing down */
+  public synchronized void setIdleTimeout(long ms) {
+    idle_timeout = ms;
+  }
+
+  /* Longest delay between two frames, in ms */
+  public synchronized void setMaxDelay(long ms) {
+    max_delay = ms;
+  }
+
+  /* Minimum delay between two frames when the device is hot or low on battery, in ms */
+  public synchronized void setPressureDelay(long ms) {
+    pressure_delay = ms;
+  }
+
+  /* Mean luma difference between two frames above which the scene moves */
+  public synchronized void setMotionThreshold(float t) {
+    motion_threshold = t;
+  }
+
+  /* Returns the smoothed latency of the given Stage, in ms */
+  public synchronized float getLatency(int stage) {
+    return latency[stage];
+  }
+
+  /* Returns true if the device reported thermal or battery pressure */
+  public synchronized boolean isUnderPressure() {
+    return pressure;
+  }
+
+  /* Returns the current delay between two frames, in ms */
+  public synchronized long getDelay() {
+    return delay;
+  }
+
+  /* Starts again at full speed */
+  protected synchronized void reset(long now) {
+    last_activity = now;
+    delay = 0;
+  }
+
+  /* Records the duration of a Stage of the last scan */
+  protected synchronized void onStage(int stage, long ms) {
+    latency[stage] += (ms-latency[stage])/8.0f;
+  }
+
+  /* Records the outcome of a scan and returns the delay, in ms,
+   * to wait before scanning the next frame.
+   * `motion` is the luma difference with the previous frame, as
+   * given by LumaThumbnail.
+   */
+  protected synchronized long onFrame(long now, boolean found, float motion) {
+    if (found || motion > motion_threshold) {
+      last_activity = now;
+      delay = 0;
+    }
+    else if (now - last_activity > idle_timeout) {
+      // ramp up geometrically, starting from the scan latency.
+      long start = Math.max(1, (long)latency[Stage.TOTAL]);
+      delay = Math.min(max_delay, Math.max(start, 2*delay));
+    }
+    if (pressure)
+      return Math.max(delay, pressure_delay);
+    return delay;
+  }
+
+  /* Updates the thermal and battery state, as given by the
+   * Intent.ACTION_BATTERY_CHANGED broadcast.
+   */
+  protected synchronized void onBattery(int level, int scale, int temperature, boolean plugged) {
+    boolean hot = temperature >= hot_temperature;
+    boolean low = !plugged && scale > 0 && (100*level)/scale <= low_battery;
+    pressure = hot || low;
+  }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2012 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.moodstocks.android;
+
+/* Single-slot mailbox between the camera and the worker thread.
+ * Posting a frame while the previous one has not been taken yet
+ * replaces it: the worker always scans the most recent frame, and
+ * superseded frames are counted as dropped.
+ */
+class FrameMailbox {
+
+  public static final String TAG = "FrameMailbox";
+  private byte[] frame = null;
+  private long time = 0;
+  private long taken_time = 0;
+  private long received = 0;
+  private long dropped = 0;
+
+  /* Puts `data`, received at `time` (in ns), in the mailbox.
+   * Returns the frame it supersedes, that the caller must release,
+   * or null if the mailbox was empty.
+   */
+  protected synchronized byte[] post(byte[] data, long time) {
+    byte[] old = frame;
+    frame = data;
+    this.time = time;
+    received++;
+    if (old != null) dropped++;
+    return old;
+  }
+
+  /* Takes the pending frame out of the mailbox, or returns null */
+  protected synchronized byte[] take() {
+    byte[] data = frame;
+    frame = null;
+    taken_time = time;
+    return data;
+  }
+
+  /* time at which the last taken frame was posted, in ns */
+  protected synchronized long getTakenTime() {
+    return taken_time;
+  }
+
+  /* total number of frames posted */
+  protected synchronized long getReceived() {
+    return received;
+  }
+
+  /* number of frames superseded before being taken */
+  protected synchronized long getDropped() {
+    return dropped;
+  }
+
+}
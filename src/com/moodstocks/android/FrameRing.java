@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2012 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.moodstocks.android;
+
+import java.util.Arrays;
+
+import android.hardware.Camera;
+
+/* Ring of preallocated NV21 preview buffers.
+ * Each buffer has exactly one owner at a time:
+ * - the camera, once queued through addCallbackBuffer(), or
+ *   available to a source filling buffers itself (see take()),
+ * - the source, while filling a buffer returned by take(),
+ * - the listener, from onPreviewFrame() until it is released,
+ * - the ring itself, when parked while the session is paused.
+ * This lets the camera fill a buffer while the previous one
+ * is still being scanned.
+ */
+class FrameRing {
+
+  public static final String TAG = "FrameRing";
+  public static final int DEFAULT_CAPACITY = 3;
+
+  // buffer owners
+  private static final class Owner {
+    private static final int RING = 0;
+    private static final int CAMERA = 1;
+    private static final int LISTENER = 2;
+    private static final int SOURCE = 3;
+  }
+
+  private Camera cam = null;
+  private boolean attached = false;
+  private int capacity = DEFAULT_CAPACITY;
+  private byte[][] buffers = new byte[0][];
+  private int[] owners = new int[0];
+
+  /* Sets the number of buffers, taken into account on next allocate() */
+  protected synchronized void setCapacity(int n) {
+    capacity = Math.max(1, n);
+  }
+
+  protected synchronized int getCapacity() {
+    return capacity;
+  }
+
+  /* Allocates `capacity` buffers of `size` bytes, all parked,
+   * and binds them to the given camera.
+   */
+  protected synchronized void allocate(Camera cam, int size) {
+    this.cam = cam;
+    this.attached = true;
+    buffers = new byte[capacity][];
+    owners = new int[capacity];
+    for (int i = 0; i < capacity; ++i) {
+      buffers[i] = new byte[size];
+      owners[i] = Owner.RING;
+    }
+  }
+
+  /* Allocates buffers for `w` x `h` frames, for a source that fills
+   * the luma plane only through take(): the chroma plane is set to
+   * neutral once, so that the buffers remain gray NV21 frames.
+   */
+  protected synchronized void allocateGray(int w, int h) {
+    allocate(null, w*h*3/2);
+    for (byte[] b : buffers) {
+      Arrays.fill(b, w*h, b.length, (byte)128);
+    }
+  }
+
+  /* Unbinds the camera. Buffers still held by a listener
+   * will be ignored when released.
+   */
+  protected synchronized void clear() {
+    cam = null;
+    attached = false;
+    buffers = new byte[0][];
+    owners = new int[0];
+  }
+
+  /* Hands every parked buffer over to the camera */
+  protected synchronized void queueParked() {
+    if (!attached) return;
+    for (int i = 0; i < buffers.length; ++i) {
+      if (owners[i] == Owner.RING) {
+        owners[i] = Owner.CAMERA;
+        if (cam != null)
+          cam.addCallbackBuffer(buffers[i]);
+      }
+    }
+  }
+
+  /* Returns a queued buffer for the source to fill, or null if
+   * none is queued. The buffer goes to the listener once filled,
+   * through deliver().
+   */
+  protected synchronized byte[] take() {
+    for (int i = 0; i < buffers.length; ++i) {
+      if (owners[i] == Owner.CAMERA) {
+        owners[i] = Owner.SOURCE;
+        return buffers[i];
+      }
+    }
+    return null;
+  }
+
+  /* Records that the camera delivered `data` to the listener.
+   * Returns false if `data` does not belong to this ring.
+   */
+  protected synchronized boolean deliver(byte[] data) {
+    int i = indexOf(data);
+    if (i < 0) return false;
+    owners[i] = Owner.LISTENER;
+    return true;
+  }
+
+  /* Gives `data` back: it is queued to the camera again if `requeue`
+   * is true, parked until next queueParked() otherwise.
+   */
+  protected synchronized void release(byte[] data, boolean requeue) {
+    int i = indexOf(data);
+    if (i < 0 || owners[i] != Owner.LISTENER) return;
+    if (requeue && attached) {
+      owners[i] = Owner.CAMERA;
+      if (cam != null)
+        cam.addCallbackBuffer(data);
+    }
+    else {
+      owners[i] = Owner.RING;
+    }
+  }
+
+  /* number of buffers currently held by the listener */
+  protected synchronized int held() {
+    int n = 0;
+    for (int i = 0; i < owners.length; ++i) {
+      if (owners[i] == Owner.LISTENER) n++;
+    }
+    return n;
+  }
+
+  private int indexOf(byte[] data) {
+    for (int i = 0; i < buffers.length; ++i) {
+      if (buffers[i] == data) return i;
+    }
+    return -1;
+  }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2012 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.moodstocks.android;
+
+import android.content.Context;
+import android.os.Build.VERSION;
+import android.os.Build.VERSION_CODES;
+import android.os.Handler;
+import android.view.SurfaceView;
+
+/* Source of camera frames for a ScannerSession.
+ * Frames are NV21 buffers of a FrameRing, delivered to the listener
+ * on the main thread. They are owned by the listener until given back
+ * with releaseFrame() or parkFrame().
+ * Two implementations exist:
+ * - CameraManager, based on android.hardware.Camera,
+ * - Camera2Source, based on Camera2 and ImageReader, used on devices
+ *   with a non-legacy Camera2 implementation.
+ */
+abstract class FrameSource extends Handler {
+
+  private static boolean camera2 = true;
+
+  /* Enables or disables the Camera2 source. Enabled by default.
+   * Takes effect on the next ScannerSession.
+   */
+  protected static void setCamera2Enabled(boolean enabled) {
+    camera2 = enabled;
+  }
+
+  /* Returns the best source available on this device */
+  protected static FrameSource get(Context c) {
+    if (camera2 && VERSION.SDK_INT >= VERSION_CODES.LOLLIPOP &&
+        Camera2Source.isSupported(c))
+      return Camera2Source.get();
+    return CameraManager.get();
+  }
+
+  /* Starts the camera, displaying its preview in `surface` */
+  protected abstract void start(Context c, CameraManager.Listener l, SurfaceView surface);
+
+  /* Stops the camera and preview */
+  protected abstract void stop();
+
+  /* Sets the number of frame buffers. Takes effect the next time
+   * the preview starts.
+   */
+  protected abstract void setBufferCount(int n);
+
+  /* Asks for new frames to be delivered to the listener */
+  protected abstract void requestNewFrame();
+
+  /* Gives a frame back to be filled again. May be called from any thread. */
+  protected abstract void releaseFrame(byte[] data);
+
+  /* Gives a frame back, to be filled again only after the next
+   * requestNewFrame(). May be called from any thread.
+   */
+  protected abstract void parkFrame(byte[] data);
+
+  /* Returns true if the frames are focussed */
+  protected abstract boolean isFocussed();
+
+  /* Requests an autofocus if the frames are not focussed */
+  protected abstract void requestFocus();
+
+  /* Requests an autofocus immediately, unless one is running */
+  protected abstract void refocus();
+
+  /* Notifies the source that the scene changed and settled */
+  protected abstract void onSceneChange();
+
+  /* Records the autofocus latencies in `metrics` */
+  protected abstract void setFocusMetrics(ScanMetrics metrics);
+
+}
@@ -23,10 +23,14 @@
 
 package com.moodstocks.android;
 
+import android.util.Log;
+
 import com.moodstocks.android.OrientationListener.Orientation;
 
 public class Image {
 
+  public static final String TAG = "Image";
+
   //--------------
   // Pixel Format
   //--------------
@@ -77,6 +81,19 @@ public class Image {
   private int ptr = 0;
   private int counter = 0;
 
+  // lifecycle tracking
+  private boolean bound = false;  // native image exists
+  private boolean used = false;   // bound to a frame, not released yet
+  private ImagePool pool = null;
+  private long acquired = 0;
+
+  // frame the native image is bound to
+  private byte[] data = null;
+  private int width = 0;
+  private int height = 0;
+  private int bpr = 0;
+  private int format = PixelFormat.NV21;
+
   static {
     Loader.load();
   }
@@ -96,20 +113,38 @@ public class Image {
    */
   protected Image(byte[] data, int w, int h, int bpr, int orientation) {
     /* NV21 is the default Android format */
-    int fmt = PixelFormat.NV21;
-    int ori = 0;
-    switch(orientation) {
-    case Orientation.UP: ori = ExifOrientation.LEFT_BOTTOM;
-    break;
-    case Orientation.RIGHT: ori = ExifOrientation.BOTTOM_RIGHT;
-    break;
-    case Orientation.DOWN: ori = ExifOrientation.RIGHT_TOP;
-    break;
-    case Orientation.LEFT: ori = ExifOrientation.TOP_LEFT;
-    break;
+    this.bind(data, w, h, bpr, PixelFormat.NV21, orientation);
+  }
+
+  /* Creates an unbound image owned by `pool` */
+  protected Image(ImagePool pool) {
+    this.pool = pool;
+  }
+
+  /* Binds the image to a new frame.
+   * The image must not be bound already, i.e it must be new or
+   * have been released.
+   * The native image is only created when the native core is loaded:
+   * otherwise the image just carries its pixels, for use with a
+   * Java RecognitionBackend.
+   */
+  protected synchronized void bind(byte[] data, int w, int h, int bpr, int fmt, int orientation) {
+    if (used) {
+      Log.e(TAG, "bind() called on an image still in use");
+      if (bound) this.destruct();
+      bound = false;
     }
+    used = true;
+    this.data = data;
+    this.width = w;
+    this.height = h;
+    this.bpr = bpr;
+    this.format = fmt;
+    this.counter = 0;
+    if (!Loader.isLoaded()) return;
     try {
-      initialize(data, w, h, bpr, fmt, ori);
+      initialize(data, w, h, bpr, fmt, exifOrientation(orientation));
+      bound = true;
     } catch (MoodstocksError e) {
       e.log();
     }
@@ -119,29 +154,111 @@ public class Image {
    * Any function taking an Image as an argument must call retain()
    * on it at at the beginning and call release() on it once it's
    * not needed anymore.
+   * The native image is destroyed as soon as the count drops
+   * to zero, and pooled images go back to their pool.
    */
-  protected void retain() {
+  protected synchronized void retain() {
     this.counter++;
   }
 
   protected void release() {
-    this.counter--;
-    if (counter <= 0) this.destruct();
+    ImagePool p = null;
+    synchronized (this) {
+      this.counter--;
+      if (counter > 0) return;
+      if (counter < 0 || !used) {
+        Log.e(TAG, "release() called on an image that was not retained");
+        counter = 0;
+        return;
+      }
+      if (bound) this.destruct();
+      bound = false;
+      used = false;
+      data = null;
+      p = pool;
+    }
+    if (p != null) p.recycle(this);
   }
 
-  /* destroys the native Image object */
-  private native void destruct();
+  /* frame accessors */
+  protected byte[] getData() {
+    return data;
+  }
+
+  protected int getWidth() {
+    return width;
+  }
+
+  protected int getHeight() {
+    return height;
+  }
+
+  protected int getBytesPerRow() {
+    return bpr;
+  }
+
+  protected int getFormat() {
+    return format;
+  }
+
+  /* pool bookkeeping: time at which the image was acquired */
+  void setAcquired(long t) {
+    acquired = t;
+  }
+
+  long getAcquired() {
+    return acquired;
+  }
 
-  /* we override finalize() to ensure that
-   * the garbage collector also destroys
-   * the native Image object
+  /* Destroys the native image of an image that was never released.
+   * Only used by ImagePool to reclaim leaked images.
+   */
+  synchronized void reclaim() {
+    if (bound) this.destruct();
+    bound = false;
+    used = false;
+    counter = 0;
+    data = null;
+  }
+
+  /* Safety net for the images that are garbage collected while
+   * still bound, i.e never released: the leak is logged and the
+   * native Image object is destroyed.
    */
   @Override
   protected void finalize() throws Throwable {
-    this.destruct();
-    super.finalize();
+    try {
+      synchronized (this) {
+        if (bound) {
+          Log.e(TAG, "image garbage collected without being released");
+          this.destruct();
+        }
+        bound = false;
+      }
+    } finally {
+      super.finalize();
+    }
   }
 
+  /* converts an OrientationListener.Orientation into its EXIF equivalent */
+  private static int exifOrientation(int orientation) {
+    int ori = ExifOrientation.UNDEFINED;
+    switch(orientation) {
+    case Orientation.UP: ori = ExifOrientation.LEFT_BOTTOM;
+    break;
+    case Orientation.RIGHT: ori = ExifOrientation.BOTTOM_RIGHT;
+    break;
+    case Orientation.DOWN: ori = ExifOrientation.RIGHT_TOP;
+    break;
+    case Orientation.LEFT: ori = ExifOrientation.TOP_LEFT;
+    break;
+    }
+    return ori;
+  }
+
+  /* destroys the native Image object */
+  private native void destruct();
+
   private native void initialize(byte[] data, int width, int height,
       int bpr, int fmt, int ori)
           throws MoodstocksError;
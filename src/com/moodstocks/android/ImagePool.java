@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2012 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.moodstocks.android;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/* Pool of reusable Image objects.
+ * acquire() rebinds a pooled Image to a new frame, and the Image
+ * comes back to the pool as soon as its reference count drops to
+ * zero on release(). Images that are never released are reported
+ * as leaks.
+ * Only the Java objects are reused: the native image is still
+ * created on each bind and destroyed on each release.
+ */
+class ImagePool {
+
+  public static final String TAG = "ImagePool";
+
+  private final int capacity;
+  private final List<Image> free;
+  private final List<Image> used;
+  private boolean closed = false;
+
+  /* Creates a pool keeping at most `capacity` idle images */
+  protected ImagePool(int capacity) {
+    super();
+    this.capacity = Math.max(1, capacity);
+    this.free = new ArrayList<Image>(this.capacity);
+    this.used = new ArrayList<Image>(this.capacity);
+  }
+
+  /* Returns an image bound to the given frame (see Image constructor).
+   * Like a new Image, it must be retained and released by its users.
+   */
+  protected Image acquire(byte[] data, int w, int h, int bpr, int fmt, int orientation) {
+    Image img;
+    synchronized (this) {
+      if (free.isEmpty()) {
+        img = new Image(this);
+      }
+      else {
+        img = free.remove(free.size()-1);
+      }
+      img.setAcquired(SystemClock.uptimeMillis());
+      used.add(img);
+      if (used.size() > capacity) {
+        Log.w(TAG, used.size() + " images in use: some images may never be released");
+      }
+    }
+    img.bind(data, w, h, bpr, fmt, orientation);
+    return img;
+  }
+
+  /* Called by Image.release() once the native image is destroyed */
+  protected synchronized void recycle(Image img) {
+    if (!used.remove(img)) {
+      Log.e(TAG, "recycle() called on an image that is not in use");
+      return;
+    }
+    if (!closed && free.size() < capacity) {
+      free.add(img);
+    }
+  }
+
+  /* Returns the number of images acquired more than `age` milliseconds
+   * ago and not released yet, and logs them.
+   */
+  protected synchronized int leaks(long age) {
+    long now = SystemClock.uptimeMillis();
+    int n = 0;
+    for (Image img : used) {
+      if (now - img.getAcquired() > age) {
+        Log.e(TAG, "image acquired " + (now - img.getAcquired()) + "ms ago was never released");
+        n++;
+      }
+    }
+    return n;
+  }
+
+  /* Empties the pool once the images in use are released: they are
+   * destroyed as usual, and not kept for reuse. Unlike close(), no
+   * image is reclaimed while it may still be in use.
+   */
+  protected synchronized void retire() {
+    closed = true;
+    free.clear();
+  }
+
+  /* Empties the pool, reclaiming the native memory of leaked images. */
+  protected synchronized void close() {
+    closed = true;
+    leaks(0);
+    for (Image img : used) {
+      img.reclaim();
+    }
+    used.clear();
+    free.clear();
+  }
+
+}
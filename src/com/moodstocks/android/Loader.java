@@ -30,6 +30,7 @@ import android.os.Build.VERSION_CODES;
 class Loader {
   private static boolean done = false;
   private static boolean compatible = true;
+  private static boolean loaded = false;
 
   /* enum to define the different possible CPU architectures */
   public static final class Architecture {
@@ -43,19 +44,26 @@ class Loader {
     if (done)
       return;
 
-    if (VERSION.SDK_INT >= VERSION_CODES.GINGERBREAD) {
-      System.loadLibrary("jmoodstocks-sdk");
+    try {
+      if (VERSION.SDK_INT >= VERSION_CODES.GINGERBREAD) {
+        System.loadLibrary("jmoodstocks-sdk");
 
-      switch (getCpuArch()) {
-        case Architecture.ARMv6: System.loadLibrary("jmoodstocks-sdk-core-armv6");
-                                 break;
-        case Architecture.ARMv7: System.loadLibrary("jmoodstocks-sdk-core-armv7");
-                                 break;
-        case Architecture.ARMv7_NEON: System.loadLibrary("jmoodstocks-sdk-core-armv7-neon");
-                                      break;
-        default: compatible = false;
-                 break;
+        switch (getCpuArch()) {
+          case Architecture.ARMv6: System.loadLibrary("jmoodstocks-sdk-core-armv6");
+                                   break;
+          case Architecture.ARMv7: System.loadLibrary("jmoodstocks-sdk-core-armv7");
+                                   break;
+          case Architecture.ARMv7_NEON: System.loadLibrary("jmoodstocks-sdk-core-armv7-neon");
+                                        break;
+          default: compatible = false;
+                   break;
+        }
+        loaded = compatible;
       }
+    } catch (LinkageError e) {
+      // e.g running on a plain JVM with a Java RecognitionBackend,
+      // where the framework natives behind Build are missing too.
+      compatible = false;
     }
     done = true;
   }
@@ -64,5 +72,10 @@ class Loader {
     return compatible;
   }
 
+  /* Returns true if the native core was actually loaded */
+  protected static boolean isLoaded() {
+    return loaded;
+  }
+
   private static native int getCpuArch();
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2012 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.moodstocks.android;
+
+/* Coarse grid of average luma values computed on a sparse sample
+ * of a frame's luma plane, cheap enough to run on every frame.
+ * It keeps the previous thumbnail to measure how much the scene
+ * changed between two frames.
+ */
+class LumaThumbnail {
+
+  public static final String TAG = "LumaThumbnail";
+  protected static final int COLS = 16;
+  protected static final int ROWS = 12;
+  // samples per cell side
+  private static final int SAMPLES = 4;
+
+  private int[] current = new int[COLS*ROWS];
+  private int[] previous = new int[COLS*ROWS];
+  private boolean empty = true;
+
+  /* Computes the thumbnail of the luma plane of the `w` x `h`
+   * frame stored in `data` (NV21 or GRAY8), and returns the mean
+   * absolute difference with the previous one, in luma levels
+   * (255 for the first frame).
+   */
+  protected float update(byte[] data, int w, int h) {
+    int[] tmp = previous;
+    previous = current;
+    current = tmp;
+
+    int cw = w/COLS;
+    int ch = h/ROWS;
+    int sx = Math.max(1, cw/SAMPLES);
+    int sy = Math.max(1, ch/SAMPLES);
+    for (int r = 0; r < ROWS; ++r) {
+      for (int c = 0; c < COLS; ++c) {
+        int sum = 0;
+        int n = 0;
+        for (int y = r*ch+sy/2; y < (r+1)*ch; y += sy) {
+          int row = y*w;
+          for (int x = c*cw+sx/2; x < (c+1)*cw; x += sx) {
+            sum += data[row+x] & 0xff;
+            n++;
+          }
+        }
+        current[r*COLS+c] = (n > 0) ? sum/n : 0;
+      }
+    }
+
+    if (empty) {
+      empty = false;
+      return 255.0f;
+    }
+    return difference();
+  }
+
+  /* mean absolute difference between the last two thumbnails */
+  protected float difference() {
+    int d = 0;
+    for (int i = 0; i < current.length; ++i) {
+      d += Math.abs(current[i]-previous[i]);
+    }
+    return (float)d/current.length;
+  }
+
+  /* Forgets the previous thumbnail */
+  protected void reset() {
+    empty = true;
+  }
+
+  /* values of the last thumbnail, row by row */
+  protected int[] values() {
+    return current;
+  }
+
+}
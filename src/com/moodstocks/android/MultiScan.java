@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2012 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.moodstocks.android;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/* Multi-code scanning mode of ScannerSession, see
+ * ScannerSession.setMultiScan().
+ * Each frame is decoded as a whole and as a grid of overlapping
+ * tiles, in parallel, so that several barcodes in view are all
+ * found. The distinct codes seen during a rolling time window are
+ * reported together, each time a new one shows up, at most once
+ * per batch interval.
+ */
+public class MultiScan {
+
+  public static final String TAG = "MultiScan";
+
+  private int cols = 2;
+  private int rows = 2;
+  private float overlap = 0.25f;
+  private long window = 3000;
+  private long interval = 500;
+
+  private ExecutorService pool;
+  private ImagePool images;
+  private byte[][] tiles = new byte[0][];
+
+  // distinct codes seen in the window, keyed on type and value.
+  private LinkedHashMap<String, Seen> seen = new LinkedHashMap<String, Seen>();
+  private boolean changed = false;
+  private long last_batch = 0;
+  private boolean closed = false;
+
+  private static class Seen {
+    private Result result;
+    private long time;
+
+    private Seen(Result result, long time) {
+      super();
+      this.result = result;
+      this.time = time;
+    }
+  }
+
+  /* Creates a multi-code scan decoding tiles on at most `threads` threads */
+  public MultiScan(int threads) {
+    super();
+    int n = Math.max(1, threads);
+    this.pool = new ThreadPoolExecutor(n, n, 0L, TimeUnit.MILLISECONDS,
+                                       new LinkedBlockingQueue<Runnable>());
+    this.images = new ImagePool(cols*rows+1);
+  }
+
+  /* Creates a multi-code scan with one thread per available core */
+  public MultiScan() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  /* Split frames into `cols` x `rows` tiles, each enlarged by
+   * `overlap` (fraction of the tile size) on every side so that a
+   * code across a border is whole in one of them. Default: 2 x 2, 0.25.
+   */
+  public synchronized void setTiles(int cols, int rows, float overlap) {
+    this.cols = Math.max(1, cols);
+    this.rows = Math.max(1, rows);
+    this.overlap = Math.max(0, Math.min(1, overlap));
+    // one image per tile plus the whole frame. Images still in use,
+    // if any, are destroyed once released.
+    images.retire();
+    this.images = new ImagePool(this.cols*this.rows+1);
+  }
+
+  /* Report the codes seen during the last `window` ms, at most every
+   * `interval` ms. Defaults to 3 s and 500 ms.
+   */
+  public synchronized void setWindow(long window, long interval) {
+    this.window = window;
+    this.interval = interval;
+  }
+
+  /* Decodes the `w` x `h` NV21 frame `data` looking for the barcode
+   * types among `formats`, and returns the codes seen in the window
+   * if a batch is due, null otherwise.
+   */
+  synchronized List<Result> scan(RecognitionBackend backend, byte[] data, int w, int h,
+                                 int orientation, int formats, long now)
+      throws MoodstocksError {
+    if (closed) return null;
+    List<Decode> tasks = new ArrayList<Decode>(cols*rows+1);
+    try {
+      return scan(tasks, backend, data, w, h, orientation, formats, now);
+    } finally {
+      // images of the tasks that never ran, e.g when interrupted.
+      for (Decode t : tasks)
+        t.discard();
+    }
+  }
+
+  private List<Result> scan(List<Decode> tasks, RecognitionBackend backend, byte[] data,
+                            int w, int h, int orientation, int formats, long now)
+      throws MoodstocksError {
+    tasks.add(new Decode(backend, images.acquire(data, w, h, w, Image.PixelFormat.NV21, orientation), formats));
+    if (cols*rows > 1) {
+      if (tiles.length != cols*rows) tiles = new byte[cols*rows][];
+      int tw = w/cols;
+      int th = h/rows;
+      int ox = (int)(tw*overlap);
+      int oy = (int)(th*overlap);
+      for (int r = 0; r < rows; ++r) {
+        for (int c = 0; c < cols; ++c) {
+          int x0 = Math.max(0, c*tw-ox);
+          int y0 = Math.max(0, r*th-oy);
+          int x1 = Math.min(w, (c+1)*tw+ox);
+          int y1 = Math.min(h, (r+1)*th+oy);
+          int i = r*cols+c;
+          if (tiles[i] == null || tiles[i].length != (x1-x0)*(y1-y0))
+            tiles[i] = new byte[(x1-x0)*(y1-y0)];
+          for (int y = y0; y < y1; ++y)
+            System.arraycopy(data, y*w+x0, tiles[i], (y-y0)*(x1-x0), x1-x0);
+          tasks.add(new Decode(backend, images.acquire(tiles[i], x1-x0, y1-y0, x1-x0,
+                                                       Image.PixelFormat.GRAY8, orientation), formats));
+        }
+      }
+    }
+
+    List<Future<Result>> found;
+    try {
+      found = pool.invokeAll(tasks);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+    MoodstocksError error = null;
+    for (int i = 0; i < found.size(); ++i) {
+      if (error == null)
+        error = tasks.get(i).error;
+      try {
+        Result r = found.get(i).get();
+        if (r == null) continue;
+        String key = r.getType() + ":" + r.getValue();
+        Seen s = seen.remove(key);
+        if (s == null) changed = true;
+        // most recently seen last.
+        seen.put(key, new Seen(r, now));
+      } catch (ExecutionException e) {
+        // decoding errors are caught by the task.
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    Iterator<Seen> it = seen.values().iterator();
+    while (it.hasNext()) {
+      if (now - it.next().time >= window) {
+        it.remove();
+        changed = true;
+      }
+    }
+    if (error != null && seen.isEmpty())
+      throw error;
+
+    if (!changed || now - last_batch < interval)
+      return null;
+    changed = false;
+    last_batch = now;
+    List<Result> batch = new ArrayList<Result>(seen.size());
+    for (Seen s : seen.values())
+      batch.add(s.result);
+    return batch;
+  }
+
+  /* Forgets the codes seen so far */
+  synchronized void reset() {
+    seen.clear();
+    changed = false;
+    last_batch = 0;
+  }
+
+  /* Stops the threads, the instance cannot be used anymore.
+   * Waits for a running scan() to end. Decodings still running after
+   * an interrupted scan() release their image as they end.
+   */
+  public synchronized void shutdown() {
+    closed = true;
+    pool.shutdown();
+    images.retire();
+  }
+
+  private static class Decode implements Callable<Result> {
+    private RecognitionBackend backend;
+    private Image qry;
+    private int formats;
+    private MoodstocksError error = null;
+    // set by the first of call() and discard(): the other does nothing.
+    private AtomicBoolean taken = new AtomicBoolean(false);
+
+    private Decode(RecognitionBackend backend, Image qry, int formats) {
+      super();
+      this.backend = backend;
+      this.qry = qry;
+      this.formats = formats;
+    }
+
+    /* Releases the image if the task did not run */
+    private void discard() {
+      if (!taken.compareAndSet(false, true)) return;
+      qry.retain();
+      qry.release();
+    }
+
+    @Override
+    public Result call() {
+      if (!taken.compareAndSet(false, true)) return null;
+      qry.retain();
+      try {
+        return backend.decode(qry, formats);
+      } catch (MoodstocksError e) {
+        error = e;
+        return null;
+      } finally {
+        qry.release();
+      }
+    }
+  }
+
+}
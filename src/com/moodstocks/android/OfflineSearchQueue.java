@@ -0,0 +1,464 @@
+/*
+ * Copyright (c) 2012 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.moodstocks.android;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+
+/* Persistent queue of API searches that could not be performed for
+ * lack of connectivity.
+ * Queries are stored on disk as JPEG files, and searched in small
+ * batches when the network comes back, from the oldest to the newest.
+ * Results are delivered later, on the UI thread, to the Listener.
+ * - a query looking like one already queued is not added again,
+ * - the oldest queries are evicted when the queue exceeds its size
+ *   or storage limits.
+ * The queue survives the process: queries stored by a previous run
+ * are searched too, and reported with their original id.
+ */
+public class OfflineSearchQueue extends Handler {
+
+  public static final String TAG = "OfflineSearchQueue";
+  private static final String DIRNAME = "ms_queue";
+
+  public static interface Listener {
+    /* notifies the caller that the queued search `id` (as returned
+     * by add()) has ended. `result` is null if nothing was found.
+     */
+    public void onQueuedSearchComplete(long id, Result result);
+    /* notifies the caller that the queued search `id` has failed
+     * with the given error, or was evicted (MoodstocksError.Code.ABORT).
+     */
+    public void onQueuedSearchFailed(long id, MoodstocksError e);
+  }
+
+  private static final class MsgCode {
+    private static final int ADD = 1;
+    private static final int DRAIN = 2;
+  }
+
+  private Context context;
+  private File dir;
+  private Handler main;
+  private WeakReference<Listener> listener;
+  private BroadcastReceiver receiver;
+
+  // queued ids and their hash, oldest first.
+  private TreeMap<Long, Long> entries = new TreeMap<Long, Long>();
+  // ids being searched, and their listener: searches only keep a weak
+  // reference to it.
+  private Map<Long, QueuedSearch> searching = new HashMap<Long, QueuedSearch>();
+  private long last_id = 0;
+  private long batch_time = 0;
+
+  private long max_bytes = 4*1024*1024;
+  private int max_entries = 50;
+  private int batch = 2;
+  private int max_distance = 6;
+  private long retry_delay = 60000;
+  private static final int QUALITY = 80;
+
+  /* Creates the queue stored in the files directory of `context`,
+   * and starts draining it whenever the network is available.
+   */
+  public OfflineSearchQueue(Context context, Listener listener) {
+    super(newLooper());
+    this.context = context.getApplicationContext();
+    this.dir = new File(context.getFilesDir(), DIRNAME);
+    this.main = new Handler(Looper.getMainLooper());
+    this.listener = new WeakReference<Listener>(listener);
+    if (!dir.isDirectory() && !dir.mkdirs())
+      Log.e(TAG, "cannot create " + dir);
+    load();
+    this.receiver = new ConnectivityReceiver();
+    this.context.registerReceiver(receiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    sendEmptyMessage(MsgCode.DRAIN);
+  }
+
+  private static Looper newLooper() {
+    HandlerThread t = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+    t.start();
+    return t.getLooper();
+  }
+
+  /* Queues the `w` x `h` NV21 frame `data`, which must not be
+   * modified afterwards, taken at the given device orientation.
+   * Returns the id of the queued search, or -1 if a similar query
+   * is already queued.
+   */
+  public long add(byte[] data, int w, int h, int orientation) {
+    long hash = DHash.compute(data, w, h, w);
+    long id;
+    synchronized (this) {
+      for (Long h2 : entries.values()) {
+        if (DHash.distance(hash, h2) <= max_distance)
+          return -1;
+      }
+      id = Math.max(System.currentTimeMillis(), last_id+1);
+      last_id = id;
+      entries.put(id, hash);
+    }
+    obtainMessage(MsgCode.ADD, new Query(id, hash, data, w, h, orientation)).sendToTarget();
+    return id;
+  }
+
+  /* Keep at most `entries` queries, using at most `bytes` bytes */
+  public synchronized void setLimits(long bytes, int entries) {
+    this.max_bytes = bytes;
+    this.max_entries = Math.max(1, entries);
+  }
+
+  /* Number of searches run at the same time when draining */
+  public synchronized void setBatchSize(int n) {
+    this.batch = Math.max(1, n);
+  }
+
+  /* Returns the number of queued searches */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /* Tries to drain the queue now */
+  public void drain() {
+    sendEmptyMessage(MsgCode.DRAIN);
+  }
+
+  /* Stops draining the queue. Queued searches stay on disk. */
+  public void close() {
+    context.unregisterReceiver(receiver);
+    removeMessages(MsgCode.DRAIN);
+    getLooper().quit();
+  }
+
+  @Override
+  public void handleMessage(Message msg) {
+    switch (msg.what) {
+      case MsgCode.ADD:
+        store((Query)msg.obj);
+        evict();
+        drainBatch();
+        break;
+      case MsgCode.DRAIN:
+        drainBatch();
+        break;
+      default:
+        break;
+    }
+  }
+
+  //---------
+  // STORAGE
+  //---------
+
+  // files are named <id>_<orientation>_<hash>.jpg
+  private File file(long id) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        if (f.getName().startsWith(id + "_"))
+          return f;
+      }
+    }
+    return null;
+  }
+
+  private synchronized void load() {
+    File[] files = dir.listFiles();
+    if (files == null) return;
+    for (File f : files) {
+      String[] v = f.getName().replace(".jpg", "").split("_");
+      try {
+        long id = Long.parseLong(v[0]);
+        entries.put(id, Long.parseLong(v[2], 16));
+        last_id = Math.max(last_id, id);
+      } catch (Exception e) {
+        // leftover temporary or unknown file.
+        f.delete();
+      }
+    }
+  }
+
+  private void store(Query q) {
+    File tmp = new File(dir, q.id + ".tmp");
+    FileOutputStream out = null;
+    boolean ok = false;
+    try {
+      out = new FileOutputStream(tmp);
+      YuvImage yuv = new YuvImage(q.data, ImageFormat.NV21, q.width, q.height, null);
+      ok = yuv.compressToJpeg(new Rect(0, 0, q.width, q.height), QUALITY, out);
+    } catch (IOException e) {
+      Log.e(TAG, "cannot write query: " + e);
+    } finally {
+      try {
+        if (out != null) out.close();
+      } catch (IOException e) {
+        ok = false;
+      }
+    }
+    File f = new File(dir, q.id + "_" + q.orientation + "_" + Long.toHexString(q.hash) + ".jpg");
+    if (!ok || !tmp.renameTo(f)) {
+      tmp.delete();
+      remove(q.id);
+      failed(q.id, new MoodstocksError("cannot store query", MoodstocksError.Code.ERROR));
+    }
+  }
+
+  // drops the oldest queries that do not fit in the limits.
+  private void evict() {
+    long bytes = 0;
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files)
+        bytes += f.length();
+    }
+    while (true) {
+      long id;
+      synchronized (this) {
+        if (entries.isEmpty() || (entries.size() <= max_entries && bytes <= max_bytes))
+          return;
+        id = -1;
+        for (Long i : entries.keySet()) {
+          if (!searching.containsKey(i)) {
+            id = i;
+            break;
+          }
+        }
+        if (id < 0) return;
+      }
+      File f = file(id);
+      if (f != null) {
+        bytes -= f.length();
+        f.delete();
+      }
+      remove(id);
+      failed(id, new MoodstocksError("query evicted from the offline queue", MoodstocksError.Code.ABORT));
+    }
+  }
+
+  private synchronized void remove(long id) {
+    entries.remove(id);
+    searching.remove(id);
+  }
+
+  //----------
+  // DRAINING
+  //----------
+
+  private boolean isConnected() {
+    ConnectivityManager cm = (ConnectivityManager)context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    NetworkInfo net = (cm != null) ? cm.getActiveNetworkInfo() : null;
+    return net != null && net.isConnected();
+  }
+
+  // starts the next batch once the previous one has ended.
+  private void drainBatch() {
+    if (!isConnected()) return;
+    QueuedSearch[] batch_searches;
+    long now = System.currentTimeMillis();
+    synchronized (this) {
+      if (!searching.isEmpty()) {
+        if (now - batch_time < retry_delay) return;
+        // searches cancelled from elsewhere never report back.
+        searching.clear();
+      }
+      if (entries.isEmpty()) return;
+      batch_time = now;
+      int n = Math.min(batch, entries.size());
+      batch_searches = new QueuedSearch[n];
+      Iterator<Long> it = entries.keySet().iterator();
+      for (int i = 0; i < n; ++i) {
+        long id = it.next();
+        batch_searches[i] = new QueuedSearch(id);
+        searching.put(id, batch_searches[i]);
+      }
+    }
+    for (QueuedSearch s : batch_searches)
+      search(s);
+    // watchdog, in case the batch never reports back.
+    removeMessages(MsgCode.DRAIN);
+    sendEmptyMessageDelayed(MsgCode.DRAIN, retry_delay);
+  }
+
+  private void search(QueuedSearch s) {
+    long id = s.id;
+    File f = file(id);
+    Bitmap bmp = (f != null) ? BitmapFactory.decodeFile(f.getPath()) : null;
+    if (bmp == null) {
+      if (f != null) f.delete();
+      remove(id);
+      failed(id, new MoodstocksError("cannot read query", MoodstocksError.Code.NOFILE));
+      return;
+    }
+    int w = bmp.getWidth();
+    int h = bmp.getHeight();
+    int[] argb = new int[w*h];
+    bmp.getPixels(argb, 0, w, 0, 0, w, h);
+    bmp.recycle();
+    byte[] gray = new byte[w*h];
+    for (int i = 0; i < w*h; ++i) {
+      int p = argb[i];
+      gray[i] = (byte)((77*((p>>16)&0xff) + 150*((p>>8)&0xff) + 29*(p&0xff)) >> 8);
+    }
+    int ori = Integer.parseInt(f.getName().split("_")[1]);
+    Image qry = new Image((ImagePool)null);
+    qry.bind(gray, w, h, w, Image.PixelFormat.GRAY8, ori);
+    try {
+      // the search notifies its listener on this thread.
+      Scanner.get().apiSearch(s, qry);
+    } catch (MoodstocksError e) {
+      qry.retain();
+      qry.release();
+      searched(id, null, e);
+    }
+  }
+
+  private void searched(long id, Result result, MoodstocksError e) {
+    boolean retry = e != null && isRetryable(e.getErrorCode());
+    boolean last;
+    synchronized (this) {
+      searching.remove(id);
+      last = searching.isEmpty();
+    }
+    if (retry) {
+      // keep the query, and try again later if the network does not
+      // come back in the meantime.
+      return;
+    }
+    File f = file(id);
+    if (f != null) f.delete();
+    remove(id);
+    if (e == null)
+      complete(id, result);
+    else
+      failed(id, e);
+    if (last)
+      drainBatch();
+  }
+
+  /* Returns true if a search that failed with `code` may succeed
+   * later, i.e the query should stay in the queue.
+   */
+  static boolean isRetryable(int code) {
+    return code == MoodstocksError.Code.NOCONN ||
+           code == MoodstocksError.Code.TIMEOUT ||
+           code == MoodstocksError.Code.SLOWCONN ||
+           code == MoodstocksError.Code.BUSY;
+  }
+
+  private void complete(final long id, final Result result) {
+    main.post(new Runnable() {
+      @Override
+      public void run() {
+        Listener l = listener.get();
+        if (l != null) l.onQueuedSearchComplete(id, result);
+      }
+    });
+  }
+
+  private void failed(final long id, final MoodstocksError e) {
+    main.post(new Runnable() {
+      @Override
+      public void run() {
+        Listener l = listener.get();
+        if (l != null) l.onQueuedSearchFailed(id, e);
+      }
+    });
+  }
+
+  private class QueuedSearch implements ApiSearch.Listener {
+    private long id;
+
+    private QueuedSearch(long id) {
+      super();
+      this.id = id;
+    }
+
+    @Override
+    public void onApiSearchStart() {
+      // void implementation
+    }
+
+    @Override
+    public void onApiSearchComplete(Result result) {
+      searched(id, result, null);
+    }
+
+    @Override
+    public void onApiSearchFailed(MoodstocksError e) {
+      searched(id, null, e);
+    }
+  }
+
+  private class ConnectivityReceiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context ctx, Intent intent) {
+      if (isConnected())
+        sendEmptyMessage(MsgCode.DRAIN);
+    }
+  }
+
+  private static class Query {
+    private long id;
+    private long hash;
+    private byte[] data;
+    private int width;
+    private int height;
+    private int orientation;
+
+    private Query(long id, long hash, byte[] data, int w, int h, int orientation) {
+      super();
+      this.id = id;
+      this.hash = hash;
+      this.data = data;
+      this.width = w;
+      this.height = h;
+      this.orientation = orientation;
+    }
+  }
+
+}
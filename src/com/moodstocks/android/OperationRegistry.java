@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2012 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.moodstocks.android;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Lock-free registry of the operations in flight (API searches,
+ * syncs). Each operation gets a unique id when registered, and the
+ * registry can be read from any thread while operations are added
+ * and removed concurrently.
+ */
+final class OperationRegistry<T> {
+
+  private final ConcurrentHashMap<Long, T> ops = new ConcurrentHashMap<Long, T>();
+  private final AtomicLong next = new AtomicLong(1);
+
+  /* Registers `op`, and returns its id */
+  long add(T op) {
+    long id = next.getAndIncrement();
+    ops.put(id, op);
+    return id;
+  }
+
+  /* Unregisters the operation `id`, returns false if it was not registered */
+  boolean remove(long id) {
+    return ops.remove(id) != null;
+  }
+
+  /* Returns the operation `id`, or null if it is not registered */
+  T get(long id) {
+    return ops.get(id);
+  }
+
+  int size() {
+    return ops.size();
+  }
+
+  boolean isEmpty() {
+    return ops.isEmpty();
+  }
+
+  /* Returns the operations registered at the time of the call */
+  List<T> snapshot() {
+    return new ArrayList<T>(ops.values());
+  }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2012 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.moodstocks.android;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/* ScanEngine running offline image search and barcode decoding
+ * at the same time on a bounded pool, to take advantage of
+ * multi-core devices.
+ * The first positive result is returned as soon as it is
+ * available: the other task is cancelled if it has not started
+ * yet, and its result is discarded otherwise.
+ */
+public class ParallelScanEngine implements ScanEngine {
+
+  public static final String TAG = "ParallelScanEngine";
+  private static final int NB_TASKS = 2;
+
+  private ExecutorService pool;
+  private CountDownLatch pending = null;
+
+  /* Creates an engine using at most `threads` threads.
+   * One thread per task (i.e 2) is enough for a single session.
+   */
+  public ParallelScanEngine(int threads) {
+    super();
+    int n = Math.max(1, threads);
+    this.pool = new ThreadPoolExecutor(n, n, 0L, TimeUnit.MILLISECONDS,
+                                       new LinkedBlockingQueue<Runnable>(NB_TASKS*n),
+                                       new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  /* Creates an engine with one thread per available core, capped to 2. */
+  public ParallelScanEngine() {
+    this(Math.min(NB_TASKS, Runtime.getRuntime().availableProcessors()));
+  }
+
+  @Override
+  public Result scan(RecognitionBackend backend, Image qry, int options, ScanMetrics metrics)
+      throws MoodstocksError {
+    boolean image = (options & Result.Type.IMAGE) != 0;
+    boolean barcode = (options & ScanEngine.BARCODES) != 0;
+
+    // nothing to parallelize.
+    if (!image || !barcode) {
+      SearchTask t = new SearchTask(null, backend, qry, options, image, metrics);
+      t.run();
+      if (t.error != null) throw t.error;
+      return t.result;
+    }
+
+    Outcome outcome = new Outcome();
+    pending = new CountDownLatch(NB_TASKS);
+    pool.execute(new SearchTask(outcome, backend, qry, options, true, metrics));
+    pool.execute(new SearchTask(outcome, backend, qry, options, false, metrics));
+    return outcome.await();
+  }
+
+  @Override
+  public void drain() {
+    CountDownLatch p = pending;
+    if (p == null) return;
+    try {
+      p.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    pending = null;
+  }
+
+  @Override
+  public void shutdown() {
+    drain();
+    pool.shutdown();
+  }
+
+  /* Shared state between the tasks of a single scan() */
+  private static class Outcome {
+    private Result result = null;
+    private MoodstocksError error = null;
+    private int done = 0;
+    private boolean cancelled = false;
+
+    private synchronized void post(Result r, MoodstocksError e) {
+      done++;
+      if (cancelled) return;
+      if (r != null) {
+        result = r;
+        // first positive result wins: cancel the other task.
+        cancelled = true;
+      }
+      else if (e != null && error == null) {
+        error = e;
+      }
+      notifyAll();
+    }
+
+    private synchronized boolean isCancelled() {
+      return cancelled;
+    }
+
+    private synchronized Result await()
+        throws MoodstocksError {
+      while (result == null && done < NB_TASKS) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+      cancelled = true;
+      if (result == null && error != null) throw error;
+      return result;
+    }
+  }
+
+  private class SearchTask implements Runnable {
+    private final Outcome outcome;
+    private final CountDownLatch latch;
+    private final RecognitionBackend backend;
+    private final Image qry;
+    private final int options;
+    private final boolean image;
+    private final ScanMetrics metrics;
+    private Result result = null;
+    private MoodstocksError error = null;
+
+    private SearchTask(Outcome outcome, RecognitionBackend backend, Image qry, int options, boolean image,
+                       ScanMetrics metrics) {
+      super();
+      this.outcome = outcome;
+      this.latch = (outcome != null) ? pending : null;
+      this.backend = backend;
+      this.qry = qry;
+      this.options = options;
+      this.image = image;
+      this.metrics = metrics;
+      qry.retain();
+    }
+
+    @Override
+    public void run() {
+      long t = System.nanoTime();
+      try {
+        if (outcome == null || !outcome.isCancelled()) {
+          if (image)
+            result = backend.search(qry);
+          else
+            result = backend.decode(qry, options);
+          metrics.record(image ? ScanMetrics.Stage.SEARCH : ScanMetrics.Stage.DECODE,
+                         System.nanoTime()-t);
+        }
+      } catch (MoodstocksError e) {
+        if (!image || e.getErrorCode() != MoodstocksError.Code.EMPTY)
+          error = e;
+      } finally {
+        qry.release();
+        if (outcome != null) {
+          outcome.post(result, error);
+          latch.countDown();
+        }
+      }
+    }
+  }
+
+}
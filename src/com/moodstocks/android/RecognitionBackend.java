@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2012 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.moodstocks.android;
+
+/* Recognition operations used by the scan pipeline.
+ * Scanner implements them with the native core, and is the default
+ * backend (see Scanner.setBackend()). Other implementations, such
+ * as the FakeRecognitionBackend of the benchmarks, allow running the
+ * Java pipeline without the native core.
+ */
+public interface RecognitionBackend {
+  /* performs an offline image search among the local database */
+  public Result search(Image qry)
+      throws MoodstocksError;
+  /* performs barcode decoding on the image, among the given formats */
+  public Result decode(Image qry, int formats)
+      throws MoodstocksError;
+  /* Match a query image against a reference from the local database */
+  public boolean match(Image qry, Result ref)
+      throws MoodstocksError;
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2012 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.moodstocks.android;
+
+/* Region of the camera frames actually sent to the recognition
+ * engine. The luma plane of each NV21 frame is cropped to the
+ * region, and optionally subsampled, into a smaller GRAY8 image,
+ * so that the cost of image search and barcode decoding drops
+ * with the number of pixels skipped.
+ *
+ * Coordinates are expressed in camera frame pixels, i.e in the
+ * landscape orientation of the sensor, whatever the device
+ * orientation.
+ */
+public class RegionOfInterest {
+
+  public static final String TAG = "RegionOfInterest";
+
+  /* region selection modes */
+  public static final class Mode {
+    public static final int FULL = 0;        // whole frame
+    public static final int CENTER = 1;      // centered window
+    public static final int VIEWFINDER = 2;  // fixed rectangle
+    public static final int LOCK = 3;        // whole frame, centered window while locked
+  }
+
+  private int mode = Mode.FULL;
+  private float ratio = 1.0f;
+  private int left, top, right, bottom;
+  private int step = 1;
+
+  // output GRAY8 image, reused across frames
+  private byte[] buffer = null;
+  private int out_width = 0;
+  private int out_height = 0;
+
+  /* Creates a region covering the whole frame */
+  public RegionOfInterest() {
+    super();
+  }
+
+  /* Scan the whole frame */
+  public synchronized void setFull() {
+    mode = Mode.FULL;
+  }
+
+  /* Scan a centered window covering `ratio` of the frame
+   * width and height, e.g 0.5 to skip 75% of the pixels.
+   */
+  public synchronized void setCenter(float ratio) {
+    mode = Mode.CENTER;
+    this.ratio = clamp(ratio);
+  }
+
+  /* Scan a fixed rectangle, e.g the viewfinder drawn on screen
+   * mapped into frame coordinates.
+   */
+  public synchronized void setViewfinder(int left, int top, int right, int bottom) {
+    mode = Mode.VIEWFINDER;
+    this.left = left;
+    this.top = top;
+    this.right = right;
+    this.bottom = bottom;
+  }
+
+  /* Scan the whole frame while looking for a result, and only a
+   * centered window covering `ratio` of the frame while checking
+   * that the locked result is still in view.
+   * The native core does not report where a result was found, so
+   * the window assumes the user keeps the object centered.
+   */
+  public synchronized void setFollowLock(float ratio) {
+    mode = Mode.LOCK;
+    this.ratio = clamp(ratio);
+  }
+
+  /* Keep one pixel out of `step` in each direction, e.g 2 to
+   * divide the number of pixels by 4. Default is 1.
+   */
+  public synchronized void setSubsampling(int step) {
+    this.step = Math.max(1, step);
+  }
+
+  public synchronized int getMode() {
+    return mode;
+  }
+
+  /* Crops the luma plane of the `w` x `h` NV21 frame into the output
+   * buffer. `locked` tells whether the session currently locks
+   * a result.
+   * Returns false if the region is the whole frame, in which case
+   * the frame should be scanned as is.
+   */
+  protected synchronized boolean apply(byte[] nv21, int w, int h, boolean locked) {
+    int x0 = 0, y0 = 0, x1 = w, y1 = h;
+    float r = 1.0f;
+    switch (mode) {
+      case Mode.CENTER:
+        r = ratio;
+        break;
+      case Mode.LOCK:
+        r = locked ? ratio : 1.0f;
+        break;
+      case Mode.VIEWFINDER:
+        x0 = Math.max(0, Math.min(left, right));
+        y0 = Math.max(0, Math.min(top, bottom));
+        x1 = Math.min(w, Math.max(left, right));
+        y1 = Math.min(h, Math.max(top, bottom));
+        break;
+      default:
+        break;
+    }
+    if (r < 1.0f) {
+      int cw = (int)(w*r);
+      int ch = (int)(h*r);
+      x0 = (w-cw)/2;
+      y0 = (h-ch)/2;
+      x1 = x0+cw;
+      y1 = y0+ch;
+    }
+    if (x1 <= x0 || y1 <= y0) {
+      x0 = 0; y0 = 0; x1 = w; y1 = h;
+    }
+    if (step == 1 && x0 == 0 && y0 == 0 && x1 == w && y1 == h)
+      return false;
+
+    out_width = (x1-x0+step-1)/step;
+    out_height = (y1-y0+step-1)/step;
+    int size = out_width*out_height;
+    if (buffer == null || buffer.length < size)
+      buffer = new byte[size];
+
+    int o = 0;
+    for (int y = y0; y < y1; y += step) {
+      int row = y*w;
+      if (step == 1) {
+        System.arraycopy(nv21, row+x0, buffer, o, out_width);
+        o += out_width;
+      }
+      else {
+        for (int x = x0; x < x1; x += step) {
+          buffer[o++] = nv21[row+x];
+        }
+      }
+    }
+    return true;
+  }
+
+  /* output of the last successful apply() */
+  protected byte[] getBuffer() {
+    return buffer;
+  }
+
+  protected int getWidth() {
+    return out_width;
+  }
+
+  protected int getHeight() {
+    return out_height;
+  }
+
+  private static float clamp(float r) {
+    return Math.max(0.1f, Math.min(1.0f, r));
+  }
+
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2012 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.moodstocks.android;
+
+/* Temporal voting on the results found by a ScannerSession.
+ * Each scanned frame casts a vote for the result found in it (or
+ * for nothing), and a result is only reported once it got at least
+ * K of the last N votes, with K and N configurable per result type.
+ * The reported result is then locked: it keeps being reported as
+ * long as it holds K of the last N votes, and it is not verified
+ * again on the frames during a cooldown after each confirmation.
+ */
+public class ResultVoter {
+
+  public static final String TAG = "ResultVoter";
+  public static final int MAX_WINDOW = 16;
+  private static final int NB_TYPES = 32;
+
+  private final int[] k = new int[NB_TYPES];
+  private final int[] n = new int[NB_TYPES];
+  private long cooldown = 500;
+
+  // last votes, most recent at head-1
+  private final Result[] window = new Result[MAX_WINDOW];
+  private int head = 0;
+  private Result result = null;
+  private long confirmed = 0;
+
+  /* Creates a voter reporting 1D barcodes (EAN8, EAN13) after 2 of
+   * the last 3 frames, and images and 2D barcodes as soon as they
+   * are found, dropping them after 2 misses.
+   */
+  public ResultVoter() {
+    super();
+    setAgreement(Result.Type.IMAGE|Result.Type.QRCODE|Result.Type.DATAMATRIX, 1, 2);
+    setAgreement(Result.Type.EAN8|Result.Type.EAN13, 2, 3);
+  }
+
+  /* For each type among `types` (bitwise-or of Result.Type), report
+   * results found in at least `k` of the last `n` frames.
+   */
+  public synchronized void setAgreement(int types, int k, int n) {
+    int nn = Math.max(1, Math.min(MAX_WINDOW, n));
+    int kk = Math.max(1, Math.min(nn, k));
+    for (int i = 0; i < NB_TYPES; ++i) {
+      if ((types & (1 << i)) != 0) {
+        this.k[i] = kk;
+        this.n[i] = nn;
+      }
+    }
+  }
+
+  /* Time, in ms, during which a confirmed result is reported
+   * without being verified on the frames. 0 verifies every frame.
+   */
+  public synchronized void setCooldown(long ms) {
+    cooldown = ms;
+  }
+
+  /* the locked result, or null */
+  protected synchronized Result getResult() {
+    return result;
+  }
+
+  /* Returns true if the locked result does not need to be verified at `now` */
+  protected synchronized boolean isCooling(long now) {
+    return result != null && now - confirmed < cooldown;
+  }
+
+  /* Returns true if a candidate found recently is still waiting for
+   * the votes that would lock it: the next frames should be scanned
+   * so that they can vote.
+   */
+  protected synchronized boolean isPending() {
+    for (int i = 1; i <= MAX_WINDOW; ++i) {
+      Result w = window[(head-i+MAX_WINDOW) % MAX_WINDOW];
+      if (w == null || i > n[index(w.getType())]) continue;
+      if (result == null || !w.equals(result)) return true;
+    }
+    return false;
+  }
+
+  /* Returns true if the locked result would still be reported after
+   * a frame where it is not found.
+   */
+  protected synchronized boolean survivesMiss() {
+    if (result == null) return false;
+    int t = index(result.getType());
+    return votes(result, n[t]-1) >= k[t];
+  }
+
+  /* Verifies that the locked result is found in `qry`: a match for
+   * images, and decoding restricted to its format for barcodes.
+   */
+  protected boolean check(RecognitionBackend backend, Image qry)
+      throws MoodstocksError {
+    Result locked = getResult();
+    if (locked == null) return false;
+    if (locked.getType() == Result.Type.IMAGE)
+      return backend.match(qry, locked);
+    Result r = backend.decode(qry, locked.getType());
+    return r != null && r.getValue().equals(locked.getValue());
+  }
+
+  /* Casts the vote of the frame scanned at `now`, that found `candidate`
+   * (possibly null), and returns the result to report, or null.
+   */
+  protected synchronized Result vote(Result candidate, long now) {
+    window[head] = candidate;
+    head = (head+1) % MAX_WINDOW;
+
+    if (result != null) {
+      int t = index(result.getType());
+      if (votes(result, n[t]) >= k[t]) {
+        if (candidate != null && candidate.equals(result))
+          confirmed = now;
+        return result;
+      }
+      result = null;
+    }
+
+    if (candidate != null) {
+      int t = index(candidate.getType());
+      if (votes(candidate, n[t]) >= k[t]) {
+        result = candidate;
+        confirmed = now;
+        return result;
+      }
+    }
+    return null;
+  }
+
+  protected synchronized void reset() {
+    for (int i = 0; i < MAX_WINDOW; ++i) window[i] = null;
+    result = null;
+  }
+
+  /* number of votes for `r` among the `last` most recent ones */
+  private int votes(Result r, int last) {
+    int v = 0;
+    for (int i = 1; i <= last; ++i) {
+      Result w = window[(head-i+MAX_WINDOW) % MAX_WINDOW];
+      if (w != null && (w == r || w.equals(r))) v++;
+    }
+    return v;
+  }
+
+  private static int index(int type) {
+    int i = Integer.numberOfTrailingZeros(type);
+    return (i < NB_TYPES) ? i : 0;
+  }
+
+}
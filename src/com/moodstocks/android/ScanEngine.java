@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2012 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.moodstocks.android;
+
+/* Strategy used by ScannerSession to run the recognition
+ * steps (offline image search and barcode decoding) on a frame.
+ * Locking on a previous result is handled by the session itself.
+ */
+public interface ScanEngine {
+  /* all the barcode formats among Result.Type */
+  public static final int BARCODES = Result.Type.EAN8|Result.Type.EAN13|
+                                     Result.Type.QRCODE|Result.Type.DATAMATRIX;
+
+  /* Performs the operations requested by `options` (see
+   * ScannerSession.setOptions()) on `qry` and returns the
+   * first result found, or null.
+   * The duration of each operation is recorded into `metrics`.
+   */
+  public Result scan(RecognitionBackend backend, Image qry, int options, ScanMetrics metrics)
+      throws MoodstocksError;
+  /* Blocks until no task started by a previous call to scan()
+   * still reads `qry`, so that its pixels can be recycled.
+   */
+  public void drain();
+  /* Releases the resources held by the engine. */
+  public void shutdown();
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2012 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.moodstocks.android;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/* Lightweight metrics registry for the scan pipeline.
+ * Each Stage has a histogram of its durations, with fixed buckets
+ * of power-of-two microseconds, and each Counter a running total.
+ * Recording never allocates and is safe from any thread.
+ */
+public class ScanMetrics {
+
+  public static final String TAG = "ScanMetrics";
+
+  /* measured stages of the pipeline */
+  public static final class Stage {
+    public static final int QUEUE = 0;     // from onPreviewFrame() to the worker
+    public static final int LOCK = 1;      // checking the locked result
+    public static final int SEARCH = 2;    // offline image search
+    public static final int DECODE = 3;    // barcode decoding
+    public static final int DISPATCH = 4;  // from the worker to the listener
+    public static final int FOCUS = 5;     // from an autofocus request to its end
+    public static final int NB = 6;
+  }
+
+  /* counted events */
+  public static final class Counter {
+    public static final int SCANNED = 0;   // frames scanned
+    public static final int DROPPED = 1;   // frames superseded before being scanned
+    public static final int LOCKED = 2;    // frames where the previous result was still found
+    public static final int FOUND = 3;     // frames with a result
+    public static final int SKIPPED = 4;   // static frames not sent to recognition
+    public static final int BLURRY = 5;    // blurry frames not sent to recognition
+    public static final int NB = 6;
+  }
+
+  private static final String[] STAGE_NAMES = { "queue", "lock", "search", "decode", "dispatch", "focus" };
+  private static final String[] COUNTER_NAMES = { "scanned", "dropped", "locked", "found", "skipped", "blurry" };
+
+  /* Bucket i holds durations in [2^(i-1), 2^i[ microseconds, bucket 0
+   * durations below 1us, and the last bucket everything above.
+   */
+  public static final int NB_BUCKETS = 24;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(Stage.NB*NB_BUCKETS);
+  private final AtomicLongArray totals = new AtomicLongArray(Stage.NB);
+  private final AtomicLongArray counters = new AtomicLongArray(Counter.NB);
+
+  private Handler dump_handler = null;
+  private Runnable dump_task = null;
+
+  public ScanMetrics() {
+    super();
+  }
+
+  /* Records a duration of `ns` nanoseconds for the given Stage */
+  public void record(int stage, long ns) {
+    long us = ns/1000;
+    int b = (us <= 0) ? 0 : 64-Long.numberOfLeadingZeros(us);
+    if (b >= NB_BUCKETS) b = NB_BUCKETS-1;
+    buckets.incrementAndGet(stage*NB_BUCKETS+b);
+    totals.addAndGet(stage, ns);
+  }
+
+  /* Increments the given Counter */
+  public void count(int counter) {
+    counters.incrementAndGet(counter);
+  }
+
+  /* Adds `n` to the given Counter */
+  public void count(int counter, long n) {
+    counters.addAndGet(counter, n);
+  }
+
+  /* Resets all histograms and counters */
+  public void reset() {
+    for (int i = 0; i < buckets.length(); ++i) buckets.set(i, 0);
+    for (int i = 0; i < totals.length(); ++i) totals.set(i, 0);
+    for (int i = 0; i < counters.length(); ++i) counters.set(i, 0);
+  }
+
+  /* Returns a copy of the current values */
+  public Snapshot snapshot() {
+    Snapshot s = new Snapshot();
+    for (int i = 0; i < buckets.length(); ++i) s.buckets[i] = buckets.get(i);
+    for (int i = 0; i < totals.length(); ++i) s.totals[i] = totals.get(i);
+    for (int i = 0; i < counters.length(); ++i) s.counters[i] = counters.get(i);
+    return s;
+  }
+
+  /* Logs a snapshot every `period` milliseconds from the calling
+   * thread's Looper, until stopDump() is called.
+   */
+  public synchronized void startDump(long period) {
+    stopDump();
+    final long p = period;
+    final Handler h = new Handler(Looper.myLooper());
+    dump_task = new Runnable() {
+      @Override
+      public void run() {
+        Log.d(TAG, snapshot().toString());
+        h.postDelayed(this, p);
+      }
+    };
+    dump_handler = h;
+    h.postDelayed(dump_task, p);
+  }
+
+  public synchronized void stopDump() {
+    if (dump_handler != null)
+      dump_handler.removeCallbacks(dump_task);
+    dump_handler = null;
+    dump_task = null;
+  }
+
+  /* Immutable copy of the metrics at a given time */
+  public static class Snapshot {
+    private final long[] buckets = new long[Stage.NB*NB_BUCKETS];
+    private final long[] totals = new long[Stage.NB];
+    private final long[] counters = new long[Counter.NB];
+
+    private Snapshot() {
+      super();
+    }
+
+    /* value of the given Counter */
+    public long getCount(int counter) {
+      return counters[counter];
+    }
+
+    /* number of durations recorded for the given Stage */
+    public long getSamples(int stage) {
+      long n = 0;
+      for (int b = 0; b < NB_BUCKETS; ++b) n += buckets[stage*NB_BUCKETS+b];
+      return n;
+    }
+
+    /* number of durations of the given Stage within bucket `b` */
+    public long getBucket(int stage, int b) {
+      return buckets[stage*NB_BUCKETS+b];
+    }
+
+    /* mean duration of the given Stage, in microseconds */
+    public long getMean(int stage) {
+      long n = getSamples(stage);
+      return (n > 0) ? totals[stage]/n/1000 : 0;
+    }
+
+    /* Upper bound, in microseconds, of the bucket holding the
+     * given percentile (between 0 and 100) of a Stage's durations.
+     */
+    public long getPercentile(int stage, int percentile) {
+      long n = getSamples(stage);
+      if (n == 0) return 0;
+      long target = (n*percentile+99)/100;
+      long seen = 0;
+      for (int b = 0; b < NB_BUCKETS; ++b) {
+        seen += buckets[stage*NB_BUCKETS+b];
+        if (seen >= target) return 1L << b;
+      }
+      return 1L << (NB_BUCKETS-1);
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      for (int c = 0; c < Counter.NB; ++c) {
+        sb.append(COUNTER_NAMES[c]).append('=').append(counters[c]).append(' ');
+      }
+      for (int s = 0; s < Stage.NB; ++s) {
+        sb.append(STAGE_NAMES[s]).append("[n=").append(getSamples(s))
+          .append(" mean=").append(getMean(s))
+          .append("us p50<").append(getPercentile(s, 50))
+          .append("us p90<").append(getPercentile(s, 90))
+          .append("us p99<").append(getPercentile(s, 99))
+          .append("us] ");
+      }
+      return sb.toString().trim();
+    }
+  }
+
+}
@@ -24,14 +24,16 @@
 package com.moodstocks.android;
 
 import java.lang.ref.WeakReference;
-import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.content.Context;
 import android.os.Build.VERSION;
@@ -44,16 +46,24 @@ import android.os.Build.VERSION_CODES;
  * - remote search on Moodstocks API,
  * - 1D/2D barcode decoding.
  */
-public final class Scanner {
+public final class Scanner implements RecognitionBackend {
 
   public static final String TAG = "Scanner";
   private static Scanner instance = null;
-  private List<WeakReference<Sync.Listener>> extra_listeners = null;
+  private CopyOnWriteArrayList<WeakReference<Sync.Listener>> extra_listeners = null;
 
   private ThreadPoolExecutor api_threadpool = null;
+  private AtomicLong api_wait = new AtomicLong(0);
+  private AtomicLong api_count = new AtomicLong(0);
+  private ApiSearchCache api_cache = new ApiSearchCache();
+  private long api_budget = 30000;
   private ExecutorService sync_thread = null;
-  private Set<ApiSearch> api_searches = null;
-  private Set<Sync> sync = null;
+  private OperationRegistry<ApiSearch> api_searches = null;
+  private OperationRegistry<Sync> sync = null;
+  private volatile RecognitionBackend backend = this;
+  private long progress_interval = 250;
+  private int progress_step = 1;
+  private SyncCheckpoint checkpoint = null;
 
   private static final String DBFilename = "ms.db";
 
@@ -67,12 +77,12 @@ public final class Scanner {
   private Scanner() {
     super();
     // stores the extra Sync listeners.
-    this.extra_listeners = new ArrayList<WeakReference<Sync.Listener>>();
+    this.extra_listeners = new CopyOnWriteArrayList<WeakReference<Sync.Listener>>();
     // stores the pending API Searches and sync.
-    this.api_searches = new HashSet<ApiSearch>();
-    this.sync = new HashSet<Sync>();
+    this.api_searches = new OperationRegistry<ApiSearch>();
+    this.sync = new OperationRegistry<Sync>();
     // ThreadPool / Thread handling the Asynchronous Sync and API Searches.
-    this.api_threadpool = (ThreadPoolExecutor)Executors.newCachedThreadPool();
+    this.api_threadpool = apiThreadPool(2, 2);
     this.sync_thread = Executors.newSingleThreadExecutor();
   }
 
@@ -113,6 +123,7 @@ public final class Scanner {
     }
     String path = context.getFilesDir().getAbsolutePath();
     this.open(path + "/" + DBFilename, key, secret);
+    this.checkpoint = new SyncCheckpoint(path + "/" + DBFilename + ".sync");
   }
 
   /* close the scanner and disconnect it from the database file */
@@ -134,38 +145,69 @@ public final class Scanner {
    * NOTE: this method requires an Internet connection.
    */
   public boolean sync(Sync.Listener listener) {
+    return sync(listener, new CancellationToken());
+  }
+
+  /* Same as sync(), cancelled with `token`: the listeners are then
+   * notified right away of a MoodstocksError.Code.ABORT error, or
+   * TIMEOUT if its deadline expired. As the native sync cannot be
+   * interrupted, it runs to its end in the background, and the next
+   * sync waits for it.
+   */
+  public boolean sync(Sync.Listener listener, CancellationToken token) {
     if (!isSyncing()) {
-      sync_thread.submit(new Sync(listener, extra_listeners, sync));
+      Sync s = new Sync(listener, extra_listeners, sync, token);
+      s.throttle(progress_interval, progress_step);
+      s.checkpoint(checkpoint);
+      sync_thread.submit(s);
       return true;
     }
     return false;
   }
 
+  /* Limit the Sync progress notifications to one every `interval` ms
+   * or every `step` percent, whichever comes first. The final
+   * notification is always delivered. Defaults to 250 ms and 1%,
+   * pass 0 and 0 to be notified of every synced image.
+   * Applies to the next syncs.
+   */
+  public void setSyncProgressThrottle(long interval, int step) {
+    this.progress_interval = interval;
+    this.progress_step = step;
+  }
+
   /* Add an extra SyncListener to the scanner. It will be used
    * every time a new sync is launched until it is removed.
    */
   public void addExtraSyncListener(Sync.Listener l) {
-    Iterator<WeakReference<Sync.Listener>> it = extra_listeners.iterator();
-    while(it.hasNext()) {
-      WeakReference<Sync.Listener> listener = it.next();
-      if (listener.get() == l)
-        return;
+    // writers only: running syncs keep iterating without locking.
+    synchronized (extra_listeners) {
+      for (WeakReference<Sync.Listener> listener : extra_listeners) {
+        if (listener.get() == l)
+          return;
+      }
+      this.extra_listeners.add(new WeakReference<Sync.Listener>(l));
     }
-    this.extra_listeners.add(new WeakReference<Sync.Listener>(l));
   }
 
   /* Removes an extra SyncListener. It won't be notified anymore
    * of any sync.
    */
   public void removeExtraSyncListener(Sync.Listener l) {
-    Iterator<WeakReference<Sync.Listener>> it = extra_listeners.iterator();
-    while(it.hasNext()) {
-      WeakReference<Sync.Listener> listener = it.next();
+    for (WeakReference<Sync.Listener> listener : extra_listeners) {
       if (listener.get() == l)
-        it.remove();
+        extra_listeners.remove(listener);
     }
   }
 
+  /* Returns true if the last sync was interrupted by a connection
+   * error or by the death of the process, in which case it should
+   * be run again by calling sync().
+   */
+  public boolean isSyncInterrupted() {
+    return !isSyncing() && checkpoint != null && checkpoint.isInterrupted();
+  }
+
   /* Returns true if the scanner is currently syncing, false otherwise */
   public boolean isSyncing() {
     if (sync.isEmpty()) {
@@ -179,16 +221,127 @@ public final class Scanner {
    * Caller must implement Scanner.ApiSearchListener to receive notifications and result.
    * NOTE: this method requires an Internet connection.
    */
-  public void apiSearch(ApiSearch.Listener listener, Image qry) {
-    api_threadpool.submit(new ApiSearch(listener, qry, api_searches));
+  public long apiSearch(ApiSearch.Listener listener, Image qry) {
+    return apiSearch(listener, qry, new CancellationToken(api_budget));
+  }
+
+  /* Same as apiSearch(), cancelled with `token`. The listener is not
+   * notified of a cancelled search, but is notified of a
+   * MoodstocksError.Code.TIMEOUT error if the token's deadline expires.
+   * Returns the id of the search, see apiSearchCancel(long).
+   */
+  public long apiSearch(ApiSearch.Listener listener, Image qry, CancellationToken token) {
+    // latest wins: the searches of this listener still waiting
+    // in the queue are superseded by the new one.
+    Iterator<Runnable> it = api_threadpool.getQueue().iterator();
+    while (it.hasNext()) {
+      Runnable r = it.next();
+      if (r instanceof ApiSearch && ((ApiSearch)r).isFrom(listener) &&
+          api_threadpool.remove(r)) {
+        ((ApiSearch)r).drop(null);
+      }
+    }
+    ApiSearch s = new ApiSearch(listener, qry, api_searches, token);
+    api_threadpool.execute(s);
+    return s.getId();
+  }
+
+  /* Latency budget, in ms, of the API searches started without a
+   * CancellationToken. Defaults to 30 s, 0 for no limit.
+   */
+  public void setApiSearchBudget(long ms) {
+    this.api_budget = ms;
+  }
+
+  /* Runs at most `threads` API searches at the same time, and queues
+   * at most `queue` more: an API search submitted while the queue is
+   * full fails with a MoodstocksError.Code.BUSY error.
+   * Defaults to 2 and 2. Pending searches are not affected.
+   */
+  public void setApiSearchLimits(int threads, int queue) {
+    ThreadPoolExecutor old = api_threadpool;
+    api_threadpool = apiThreadPool(Math.max(1, threads), Math.max(1, queue));
+    old.shutdown();
+  }
+
+  /* Returns the cache of API Search results used by scanner
+   * sessions to answer repeated snaps of the same object.
+   */
+  public ApiSearchCache getApiSearchCache() {
+    return api_cache;
+  }
+
+  /* Returns the number of API searches running */
+  public int getApiSearchInFlight() {
+    return api_threadpool.getActiveCount();
+  }
+
+  /* Returns the number of API searches waiting to run */
+  public int getApiSearchQueued() {
+    return api_threadpool.getQueue().size();
+  }
+
+  /* Returns the mean time, in ms, spent by API searches in the queue */
+  public float getApiSearchWaitTime() {
+    long n = api_count.get();
+    return (n > 0) ? api_wait.get() / (n * 1e6f) : 0;
+  }
+
+  private ThreadPoolExecutor apiThreadPool(int threads, int queue) {
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queue),
+        new RejectedExecutionHandler() {
+          @Override
+          public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            // the image of a rejected search must be released.
+            ((ApiSearch)r).drop(new MoodstocksError("too many pending API searches",
+                                                    MoodstocksError.Code.BUSY));
+          }
+        }) {
+      @Override
+      protected void afterExecute(Runnable r, Throwable t) {
+        api_wait.addAndGet(((ApiSearch)r).getWaitTime());
+        api_count.incrementAndGet();
+      }
+    };
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
   }
 
   /* Cancel any pending API Search. */
   public void apiSearchCancel() {
-    Iterator<ApiSearch> it = api_searches.iterator();
-    while(it.hasNext()) {
-      it.next().cancel();
-    }
+    for (ApiSearch s : api_searches.snapshot())
+      s.cancel();
+  }
+
+  /* Cancel the API Search `id`, as returned by apiSearch() */
+  public void apiSearchCancel(long id) {
+    ApiSearch s = api_searches.get(id);
+    if (s != null) s.cancel();
+  }
+
+  /* Returns the number of API searches started and not ended yet */
+  public int getApiSearchCount() {
+    return api_searches.size();
+  }
+
+  /* Cancel the running Sync, see sync(Sync.Listener, CancellationToken) */
+  public void syncCancel() {
+    for (Sync s : sync.snapshot())
+      s.cancel();
+  }
+
+  /* Set the backend used by scanner sessions for offline image
+   * search, barcode decoding and matching. Pass null to go back to
+   * the native core (default).
+   */
+  public void setBackend(RecognitionBackend backend) {
+    this.backend = (backend != null) ? backend : this;
+  }
+
+  /* Returns the backend used by scanner sessions */
+  public RecognitionBackend getBackend() {
+    return backend;
   }
 
   /* Return the total number of images recorded into the local database */
@@ -200,14 +353,17 @@ public final class Scanner {
       throws MoodstocksError;
 
   /* performs an offline image search among the local database*/
+  @Override
   public native Result search(Image qry)
       throws MoodstocksError;
 
   /* performs barcode decoding on the image, among the given formats */
+  @Override
   public native Result decode(Image qry, int formats)
       throws MoodstocksError;
 
   /* Match a query image against a reference from the local database */
+  @Override
   public native boolean match(Image qry, Result ref)
       throws MoodstocksError;
 
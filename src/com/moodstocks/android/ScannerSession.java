@@ -24,16 +24,24 @@
 package com.moodstocks.android;
 
 import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.moodstocks.android.CameraManager.CameraError;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.DialogInterface;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.hardware.Camera;
+import android.os.BatteryManager;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.view.SurfaceView;
 
 public class ScannerSession extends Handler implements CameraManager.Listener {
@@ -42,12 +50,35 @@ public class ScannerSession extends Handler implements CameraManager.Listener {
   private Scanner scanner = null;
   private WeakReference<Listener> listener;
   private WorkerThread worker;
+  private FrameMailbox mailbox = new FrameMailbox();
+  private volatile ScanEngine engine = new SerialScanEngine();
+  private volatile OfflineSearchQueue offline = null;
+  private volatile MultiScan multi = null;
+  private volatile SceneChangeDetector detector = new SceneChangeDetector();
+  private volatile SharpnessGate sharpness = new SharpnessGate();
+  // cancels the online search of the current snap.
+  private volatile CancellationToken snap_token = new CancellationToken();
+  private long snap_budget = 15000;
+  private volatile RegionOfInterest roi = null;
+  private volatile FrameGovernor governor = new FrameGovernor();
+  private ResultVoter voter = new ResultVoter();
+  // uptime before which no frame should be scanned, set by the governor
+  private volatile long resume_at = 0;
+  private BatteryReceiver battery = new BatteryReceiver();
+  private ScanMetrics metrics = new ScanMetrics();
+  // camera frames: Camera2 or legacy camera
+  private final FrameSource source;
+  // time at which the worker posted its last message, in ns
+  private volatile long dispatch_time = 0;
   
   private boolean front_facing = false;
   private int frame_width;
   private int frame_height;
   private boolean running = false;
+  // number of sessions currently scanning, in the whole process.
+  private static final AtomicInteger scanning = new AtomicInteger(0);
   private boolean snap = false;
+  private boolean snapping = false;
 
   // default options: cache image recognition only.
   protected int options = Result.Type.IMAGE;
@@ -64,6 +95,15 @@ public class ScannerSession extends Handler implements CameraManager.Listener {
     public void onScanFailed(MoodstocksError error);
   }
 
+  /* Listener of a session in multi-code mode, see setMultiScan() */
+  public static interface MultiListener extends Listener {
+    /* Notifies the caller of all the distinct codes seen during
+     * the time window of the MultiScan, most recent last. Sent
+     * when a new code shows up or an old one expires.
+     */
+    public void onMultiScanComplete(List<Result> results);
+  }
+
   /* Constructor. Requires:
    * - a parent activity
    * - a listener to notify
@@ -76,7 +116,10 @@ public class ScannerSession extends Handler implements CameraManager.Listener {
     this.worker = new WorkerThread(this);
     OrientationListener.init(parent);
     OrientationListener.get().enable();
-    CameraManager.get().start(parent, this, preview);
+    this.source = FrameSource.get(parent);
+    source.setFocusMetrics(metrics);
+    source.start(parent, this, preview);
+    parent.registerReceiver(battery, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
     worker.start();
   }
 
@@ -91,6 +134,134 @@ public class ScannerSession extends Handler implements CameraManager.Listener {
     this.options = options;
   }
 
+  /* Set the engine used to run offline image search and
+   * barcode decoding on each frame, e.g a ParallelScanEngine
+   * on multi-core devices. Default is a SerialScanEngine.
+   * The session shuts the engine down when closed.
+   */
+  public void setScanEngine(ScanEngine engine) {
+    ScanEngine old = this.engine;
+    this.engine = engine;
+    if (old != null && old != engine) {
+      Handler h = worker.getHandler();
+      if (h != null)
+        h.obtainMessage(MsgCode.SHUTDOWN, old).sendToTarget();
+      else
+        old.shutdown();
+    }
+  }
+
+  /* Switch to multi-code mode: every barcode in view is decoded,
+   * and a MultiListener is notified of the distinct codes seen
+   * recently instead of a single result per frame. Offline image
+   * recognition is not performed in this mode.
+   * Pass null to go back to single results (default).
+   * The session shuts the MultiScan down when closed or replaced.
+   */
+  public void setMultiScan(MultiScan multi) {
+    MultiScan old = this.multi;
+    this.multi = multi;
+    if (old != null && old != multi) {
+      // the worker may be scanning with it.
+      Handler h = worker.getHandler();
+      if (h != null)
+        h.obtainMessage(MsgCode.SHUTDOWN_MULTI, old).sendToTarget();
+      else
+        old.shutdown();
+    }
+  }
+
+  /* Set the SceneChangeDetector skipping recognition on frames
+   * identical to the last recognized one, or null to recognize
+   * every frame. A detector with default settings is used unless
+   * specified.
+   */
+  public void setSceneChangeDetector(SceneChangeDetector detector) {
+    this.detector = detector;
+  }
+
+  /* Set the SharpnessGate keeping blurry frames away from
+   * recognition, or null to recognize every frame. A gate with
+   * default settings is used unless specified.
+   */
+  public void setSharpnessGate(SharpnessGate gate) {
+    this.sharpness = gate;
+  }
+
+  /* Set the queue in which snaps that fail for lack of connectivity
+   * are stored, to be searched again once the network is back.
+   * The listener is still notified of the failure. Pass null to
+   * drop them (default).
+   */
+  public void setOfflineQueue(OfflineSearchQueue queue) {
+    this.offline = queue;
+  }
+
+  /* Set the time, in ms, after which a snap that got no answer
+   * fails with a MoodstocksError.Code.TIMEOUT error, counted from
+   * the call to snap(). Defaults to 15 s, 0 for no limit.
+   */
+  public void setSnapBudget(long ms) {
+    this.snap_budget = ms;
+  }
+
+  /* Set the FrameGovernor pacing the scanned frames according to
+   * activity, scan latency and battery state, or null to scan
+   * frames as fast as possible.
+   * A governor with default settings is used unless specified.
+   */
+  public void setFrameGovernor(FrameGovernor governor) {
+    this.governor = governor;
+    resume_at = 0;
+  }
+
+  /* Returns the ResultVoter deciding when results found in the
+   * frames are reported and locked, e.g to change the number of
+   * frames that must agree on a result per result type.
+   */
+  public ResultVoter getResultVoter() {
+    return voter;
+  }
+
+  /* Restrict scanning to a region of the camera frames, see
+   * RegionOfInterest. Pass null to scan whole frames (default).
+   */
+  public void setRegionOfInterest(RegionOfInterest roi) {
+    this.roi = roi;
+  }
+
+  /* Set the number of camera frame buffers, so that the camera
+   * can capture the next frames while the current one is scanned.
+   * Takes effect the next time the camera preview starts.
+   * Default is FrameRing.DEFAULT_CAPACITY.
+   */
+  public void setBufferCount(int n) {
+    source.setBufferCount(n);
+  }
+
+  /* Returns the metrics of the scan pipeline, e.g to take a
+   * snapshot or dump them periodically.
+   */
+  public ScanMetrics getMetrics() {
+    return metrics;
+  }
+
+  /* Returns the number of frames received from the camera
+   * since the session was created.
+   */
+  public long getReceivedFrames() {
+    return mailbox.getReceived();
+  }
+
+  /* Returns the number of frames dropped without being scanned
+   * because a more recent frame arrived first. When scanning is
+   * slower than capture, this grows with the received frames
+   * while latency stays flat.
+   */
+  public long getDroppedFrames() {
+    return mailbox.getDropped();
+  }
+
   /* Launch an online search on the next frame.
    * Returns false if the operation could not be performed,
    * because either the session is paused or a previous call
@@ -98,7 +269,11 @@ public class ScannerSession extends Handler implements CameraManager.Listener {
    */
   public boolean snap() {
     if (running && !snap) {
+      snap_token = new CancellationToken(snap_budget);
       snap = true;
+      // do not keep the user waiting for the governor.
+      resume_at = 0;
+      source.requestNewFrame();
       return true;
     }
     return false;
@@ -110,13 +285,15 @@ public class ScannerSession extends Handler implements CameraManager.Listener {
    * online search currently running.
    */
   public boolean cancel() {
-    scanner.apiSearchCancel();
+    snap_token.cancel();
     if (running && snap) {
-      CameraManager.get().requestNewFrame();
       snap = false;
+      snapping = false;
+      source.requestNewFrame();
       return true;
     }
     snap = false;
+    snapping = false;
     return false;
   }
 
@@ -127,8 +304,10 @@ public class ScannerSession extends Handler implements CameraManager.Listener {
   public boolean resume() {
     if (!running) {
       worker.reset();
+      resume_at = 0;
       running = true;
-      CameraManager.get().requestNewFrame();
+      scanning.incrementAndGet();
+      source.requestNewFrame();
       return true;
     }
     return false;
@@ -141,22 +320,34 @@ public class ScannerSession extends Handler implements CameraManager.Listener {
   public boolean pause() {
     if (running) {
       running = false;
+      scanning.decrementAndGet();
       return true;
     }
     return false;
   }
 
+  /* Returns true if a scanner session is running */
+  public static boolean isScanning() {
+    return scanning.get() > 0;
+  }
+
   /* close the session */
   public void close() {
     pause();
     cancel();
     OrientationListener.get().disable();
-    CameraManager.get().stop();
+    parent.unregisterReceiver(battery);
+    removeMessages(MsgCode.WAKE);
+    source.stop();
+    mailbox.take();
+    // shut down by the worker, before it quits.
+    setMultiScan(null);
     finishWorker(500L);
   }
 
   /* closes the worker thread, letting it `t` milliseconds to end */
   private void finishWorker(long t) {
+    worker.getHandler().obtainMessage(MsgCode.SHUTDOWN, engine).sendToTarget();
     worker.getHandler().obtainMessage(MsgCode.QUIT).sendToTarget();
     try {
       worker.join(t);
@@ -198,22 +389,47 @@ public class ScannerSession extends Handler implements CameraManager.Listener {
     builder.show();
   }
 
+  /* Frames are owned by the session from here on, and must be given
+   * back to the FrameSource once they are not needed anymore.
+   */
   @Override
   public void onPreviewFrame(byte[] data, Camera camera) {
-    if (running) {
+    if (running && !snap && throttled()) {
+      // the camera stops delivering frames once all
+      // buffers are parked, until the governor wakes up.
+      source.parkFrame(data);
+      return;
+    }
+    if (running && !snapping) {
       if (snap) {
-        if (CameraManager.get().isFocussed()) {
-          worker.getHandler().obtainMessage(MsgCode.SNAP, data).sendToTarget();
+        if (source.isFocussed()) {
+          // online search runs asynchronously: work on a copy
+          // so that the buffer can go straight back to the camera.
+          snapping = true;
+          worker.getHandler().obtainMessage(MsgCode.SNAP, data.clone()).sendToTarget();
+          source.parkFrame(data);
         }
         else {
-          CameraManager.get().requestFocus();
-          CameraManager.get().requestNewFrame();
+          source.requestFocus();
+          source.releaseFrame(data);
         }
       }
       else {
-        worker.getHandler().obtainMessage(MsgCode.SCAN, data).sendToTarget();
+        // latest frame wins: a frame still waiting for the
+        // worker is superseded and goes back to the camera.
+        byte[] old = mailbox.post(data, System.nanoTime());
+        if (old != null) {
+          metrics.count(ScanMetrics.Counter.DROPPED);
+          source.releaseFrame(old);
+        }
+        else
+          worker.getHandler().obtainMessage(MsgCode.SCAN).sendToTarget();
       }
     }
+    else {
+      // paused: the buffer waits for the next requestNewFrame().
+      source.parkFrame(data);
+    }
   }
   
   @Override
@@ -224,6 +440,7 @@ public class ScannerSession extends Handler implements CameraManager.Listener {
     switch(msg.what) {
     
       case MsgCode.SUCCESS:
+        metrics.record(ScanMetrics.Stage.DISPATCH, System.nanoTime()-dispatch_time);
         if (l != null)
           l.onScanComplete((Result)msg.obj);
         break;
@@ -232,6 +449,15 @@ public class ScannerSession extends Handler implements CameraManager.Listener {
         if (l != null)
           l.onScanFailed((MoodstocksError)msg.obj);
         break;
+
+      case MsgCode.MULTI:
+        metrics.record(ScanMetrics.Stage.DISPATCH, System.nanoTime()-dispatch_time);
+        if (l instanceof MultiListener) {
+          @SuppressWarnings("unchecked")
+          List<Result> results = (List<Result>)msg.obj;
+          ((MultiListener)l).onMultiScanComplete(results);
+        }
+        break;
         
       case MsgCode.API_START:
         if (l != null)
@@ -241,34 +467,90 @@ public class ScannerSession extends Handler implements CameraManager.Listener {
         
       case MsgCode.API_SUCCESS:
         snap = false;
+        snapping = false;
+        snap_token.dispose();
         if (l != null)
           l.onApiSearchComplete((Result)msg.obj);
         break;
         
       case MsgCode.API_FAILED:
         snap = false;
+        snapping = false;
+        snap_token.dispose();
         MoodstocksError error = (MoodstocksError)msg.obj;
         if (error.getErrorCode() != MoodstocksError.Code.ABORT && l != null)
           l.onApiSearchFailed(error);
         break;
   
+      case MsgCode.WAKE:
+        break;
+
+      case MsgCode.REFOCUS:
+        source.refocus();
+        newFrame = false;
+        break;
+
+      case MsgCode.SCENE_CHANGE:
+        source.onSceneChange();
+        newFrame = false;
+        break;
+
       default:
         break;
         
     }
     
-    if (newFrame && running)
-      CameraManager.get().requestNewFrame();
+    if (newFrame && running && !snapping && !throttled())
+      source.requestNewFrame();
     
   }
+
+  /* Returns true if the governor asks to wait before scanning the
+   * next frame, in which case a WAKE message is scheduled.
+   */
+  private boolean throttled() {
+    long wait = resume_at - SystemClock.uptimeMillis();
+    if (wait <= 0)
+      return false;
+    if (!hasMessages(MsgCode.WAKE))
+      sendEmptyMessageDelayed(MsgCode.WAKE, wait);
+    return true;
+  }
+
+  /* Forwards battery and temperature updates to the governor */
+  private class BatteryReceiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+      FrameGovernor g = governor;
+      if (g != null) {
+        g.onBattery(intent.getIntExtra(BatteryManager.EXTRA_LEVEL, 0),
+                    intent.getIntExtra(BatteryManager.EXTRA_SCALE, 100),
+                    intent.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0),
+                    intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0);
+      }
+    }
+  }
   
   private class WorkerThread extends Thread implements ApiSearch.Listener {
     
     private Handler handler;
     private ScannerSession session;
-    // locking values:
-    private Result _result = null;
-    private int _losts = 0;
+    // frames are scanned one at a time, plus at most one
+    // cancelled task lingering on the previous one.
+    private ImagePool images = new ImagePool(2);
+    // pacing values:
+    private LumaThumbnail thumbnail = new LumaThumbnail();
+    // the scene is moving: the autofocus is triggered once it settles.
+    private boolean moving = false;
+    // motion thresholds, in luma levels
+    private static final float MOVING = 12.0f;
+    private static final float SETTLED = 4.0f;
+    // last snapped frame, kept for the offline queue.
+    private byte[] snap_data = null;
+    private int snap_orientation = 0;
+    private long snap_hash = 0;
+    private long lock_time = 0;
+    private long recognition_time = 0;
     
     private WorkerThread(ScannerSession session) {
       super();
@@ -287,130 +569,237 @@ public class ScannerSession extends Handler implements CameraManager.Listener {
     }
     
     private void reset() {
-      _result = null;
-      _losts = 0;
+      voter.reset();
+      SceneChangeDetector d = detector;
+      if (d != null)
+        d.reset();
+      SharpnessGate s = sharpness;
+      if (s != null)
+        s.reset();
+      MultiScan m = multi;
+      if (m != null)
+        m.reset();
+      thumbnail.reset();
+      moving = false;
+      FrameGovernor g = governor;
+      if (g != null)
+        g.reset(SystemClock.uptimeMillis());
     }
     
     private void quit() {
+      images.close();
       Looper.myLooper().quit();
     }
     
-    private void scan(byte[] data) {
+    private void scan() {
+      byte[] data = mailbox.take();
+      if (data == null) return;
+      long start = System.nanoTime();
+      metrics.record(ScanMetrics.Stage.QUEUE, start-mailbox.getTakenTime());
+      metrics.count(ScanMetrics.Counter.SCANNED);
+      FrameGovernor g = governor;
+      SceneChangeDetector d = detector;
+      float motion = thumbnail.update(data, frame_width, frame_height);
+      if (motion > MOVING) {
+        moving = true;
+      }
+      else if (moving && motion < SETTLED) {
+        // new scene in front of the camera: focus on it.
+        moving = false;
+        session.obtainMessage(MsgCode.SCENE_CHANGE).sendToTarget();
+      }
       Result result = null;
       MoodstocksError error = null;
+      int ori = OrientationListener.get().getOrientation();
+      if (front_facing)
+        ori = (6-ori)%4;
+      long now = SystemClock.uptimeMillis();
+      MultiScan m = multi;
+      if (m != null) {
+        // multi-code mode: all barcodes, whole frames.
+        List<Result> results = null;
+        try {
+          results = m.scan(scanner.getBackend(), data, frame_width, frame_height, ori,
+                           options & ScanEngine.BARCODES, now);
+        } catch (MoodstocksError e) {
+          error = e;
+        }
+        source.releaseFrame(data);
+        dispatch_time = System.nanoTime();
+        if (error != null) {
+          session.obtainMessage(MsgCode.FAILED, error).sendToTarget();
+        }
+        else if (results != null) {
+          metrics.count(ScanMetrics.Counter.FOUND);
+          session.obtainMessage(MsgCode.MULTI, results).sendToTarget();
+        }
+        if (g != null) {
+          g.onStage(FrameGovernor.Stage.TOTAL, (System.nanoTime()-start)/1000000);
+          now = SystemClock.uptimeMillis();
+          resume_at = now + g.onFrame(now, results != null && !results.isEmpty(), motion);
+        }
+        return;
+      }
+      // a pending candidate needs the votes of the next frames.
+      boolean pending = voter.isPending();
+      boolean skip = voter.isCooling(now) ||
+                     (d != null && !pending && d.isUnchanged(thumbnail.values(), now));
+      boolean blurry = false;
+      SharpnessGate s = sharpness;
+      if (!skip && s != null && !pending && !s.accept(data, frame_width, frame_height, now)) {
+        skip = blurry = true;
+        metrics.count(ScanMetrics.Counter.BLURRY);
+        if (s.refocus(now))
+          session.obtainMessage(MsgCode.REFOCUS).sendToTarget();
+      }
+      if (skip) {
+        // the locked result was confirmed recently, nothing changed
+        // since the last recognition, or the frame is too blurry:
+        // report the current outcome again without spending any
+        // recognition on the frame.
+        result = voter.getResult();
+        if (result != null) {
+          metrics.count(ScanMetrics.Counter.LOCKED);
+          metrics.count(ScanMetrics.Counter.FOUND);
+        }
+        else if (!blurry) {
+          metrics.count(ScanMetrics.Counter.SKIPPED);
+        }
+        dispatch_time = System.nanoTime();
+        session.obtainMessage(MsgCode.SUCCESS, result).sendToTarget();
+        source.releaseFrame(data);
+        if (g != null) {
+          g.onStage(FrameGovernor.Stage.TOTAL, (System.nanoTime()-start)/1000000);
+          resume_at = now + g.onFrame(now, result != null, motion);
+        }
+        return;
+      }
+      if (d != null)
+        d.recognized(thumbnail.values(), now);
+      Image qry;
+      RegionOfInterest r = roi;
+      if (r != null && r.apply(data, frame_width, frame_height, voter.getResult() != null)) {
+        // the cropped copy is all we need: the camera can
+        // fill the frame again right away.
+        source.releaseFrame(data);
+        data = null;
+        qry = images.acquire(r.getBuffer(), r.getWidth(), r.getHeight(), r.getWidth(),
+                             Image.PixelFormat.GRAY8, ori);
+      }
+      else {
+        qry = images.acquire(data, frame_width, frame_height, frame_width,
+                             Image.PixelFormat.NV21, ori);
+      }
       try {
-        int ori = OrientationListener.get().getOrientation();
-        if (front_facing)
-          ori = (6-ori)%4;
-        result = scan(new Image(data, frame_width, frame_height, frame_width, ori));
+        result = scan(qry);
       } catch (MoodstocksError e) {
         error = e;
       }
+      if (result != null)
+        metrics.count(ScanMetrics.Counter.FOUND);
+      dispatch_time = System.nanoTime();
       if (error != null) {
         session.obtainMessage(MsgCode.FAILED, error).sendToTarget();
       }
       else {
         session.obtainMessage(MsgCode.SUCCESS, result).sendToTarget();
       }
+      // wait for cancelled tasks still reading the frame, then
+      // let the camera fill it again.
+      engine.drain();
+      if (data != null)
+        source.releaseFrame(data);
+
+      if (g != null) {
+        g.onStage(FrameGovernor.Stage.LOCK, lock_time/1000000);
+        g.onStage(FrameGovernor.Stage.RECOGNITION, recognition_time/1000000);
+        g.onStage(FrameGovernor.Stage.TOTAL, (System.nanoTime()-start)/1000000);
+        now = SystemClock.uptimeMillis();
+        resume_at = now + g.onFrame(now, result != null, motion);
+      }
     }
     
     /* Performs a search in the local cache, as well as
      * barcode decoding, according to the options previously set.
+     * While a result is locked, it is only verified on the frame,
+     * and the full search runs only if the lock is lost.
      */
     private Result scan(Image qry)
         throws MoodstocksError {
       
       qry.retain();
-      Result result = null;
+      Result found = null;
+      boolean searched = true;
+      RecognitionBackend backend = scanner.getBackend();
+      long t = System.nanoTime();
+      lock_time = 0;
+      recognition_time = 0;
 
       //----------
       // LOCKING
       //----------
-      try {
-        boolean lock = false;
-        if (_result != null && _losts < 2) {
-          int found = 0;
-          switch (_result.getType()) {
-            case Result.Type.IMAGE:
-              found = scanner.match(qry, _result) ? 1 : -1;
-              break;
-            case Result.Type.QRCODE:
-              Result qr = scanner.decode(qry, Result.Type.QRCODE);
-              if (qr != null) {
-                found = qr.getValue().equals(_result.getValue()) ? 1 : -1;
-              }
-              else {
-                found = -1;
-              }
-              break;
-            case Result.Type.DATAMATRIX:
-              Result dmtx = scanner.decode(qry, Result.Type.DATAMATRIX);
-              if (dmtx != null) {
-                found = dmtx.getValue().equals(_result.getValue()) ? 1 : -1;
-              }
-              else {
-                found = -1;
-              }
-              break;
-            default:
-              break;
-          }
-
-          if (found == 1) {
-            lock = true;
-            _losts = 0;
-          }
-          else if (found == -1) {
-            _losts++;
-            lock = (_losts >= 2) ? false : true;
-          }
+      Result locked = voter.getResult();
+      if (locked != null) {
+        boolean confirmed = false;
+        try {
+          confirmed = voter.check(backend, qry);
+        } catch (MoodstocksError e) {
+          e.log();
         }
-        if (lock) {
-          result = _result;
+        if (confirmed) {
+          found = locked;
+          searched = false;
         }
-      } catch (MoodstocksError e) {
-        e.log();
-      }
-
-      //---------------
-      // IMAGE SEARCH
-      //---------------
-      try {
-        if (result == null && ((options & Result.Type.IMAGE) != 0)) {
-          result = scanner.search(qry);
-          if (result != null) {
-            _losts = 0;
-          }
+        else if (voter.survivesMiss()) {
+          searched = false;
         }
-      } catch (MoodstocksError e) {
-        if (e.getErrorCode() != MoodstocksError.Code.EMPTY)
-          throw e;
+        lock_time = System.nanoTime()-t;
+        metrics.record(ScanMetrics.Stage.LOCK, lock_time);
       }
 
-
-      //-------------------
-      // BARCODE DECODING
-      //-------------------
-      if (result == null &&
-         ( (options & (Result.Type.QRCODE|Result.Type.EAN13|
-                       Result.Type.EAN8|Result.Type.DATAMATRIX) ) != 0)) {
-        result = scanner.decode(qry, options);
-        if (result != null) {
-          _losts = 0;
+      //------------------------------------
+      // IMAGE SEARCH AND BARCODE DECODING
+      //------------------------------------
+      if (searched) {
+        t = System.nanoTime();
+        try {
+          found = engine.scan(backend, qry, options, metrics);
+        } catch (MoodstocksError e) {
+          // the image must go back to its pool in any case.
+          qry.release();
+          throw e;
+        } finally {
+          recognition_time = System.nanoTime()-t;
         }
       }
       
-      //----------------
-      // Locking update
-      //---------------
-      _result = result;
+      //--------
+      // VOTING
+      //--------
+      Result result = voter.vote(found, SystemClock.uptimeMillis());
+      if (result != null && result == locked)
+        metrics.count(ScanMetrics.Counter.LOCKED);
       
       qry.release();
       return result;
     }
     
     private void snap(byte[] data) {
-      scanner.apiSearch(this, new Image(data, frame_width, frame_height, frame_width, OrientationListener.get().getOrientation()));
+      // the same object was snapped recently: answer right away.
+      ApiSearchCache cache = scanner.getApiSearchCache();
+      long now = SystemClock.elapsedRealtime();
+      snap_hash = ApiSearchCache.hash(data, frame_width, frame_height);
+      Result cached = cache.get(snap_hash, now);
+      if (cached != null) {
+        session.obtainMessage(MsgCode.API_START).sendToTarget();
+        session.obtainMessage(MsgCode.API_SUCCESS,
+                              (cached != ApiSearchCache.NOT_FOUND) ? cached : null).sendToTarget();
+        return;
+      }
+      int ori = OrientationListener.get().getOrientation();
+      snap_data = (offline != null) ? data : null;
+      snap_orientation = ori;
+      scanner.apiSearch(this, new Image(data, frame_width, frame_height, frame_width, ori), snap_token);
     }
     
     @Override
@@ -420,11 +809,17 @@ public class ScannerSession extends Handler implements CameraManager.Listener {
 
     @Override
     public void onApiSearchComplete(Result result) {
+      scanner.getApiSearchCache().put(snap_hash, result, SystemClock.elapsedRealtime());
+      snap_data = null;
       session.obtainMessage(MsgCode.API_SUCCESS, result).sendToTarget();  
     }
 
     @Override
     public void onApiSearchFailed(MoodstocksError e) {
+      OfflineSearchQueue q = offline;
+      if (q != null && snap_data != null && OfflineSearchQueue.isRetryable(e.getErrorCode()))
+        q.add(snap_data, frame_width, frame_height, snap_orientation);
+      snap_data = null;
       session.obtainMessage(MsgCode.API_FAILED, e).sendToTarget();  
     }
     
@@ -448,7 +843,7 @@ public class ScannerSession extends Handler implements CameraManager.Listener {
         switch(msg.what) {
         
           case MsgCode.SCAN:
-            w.scan((byte[])msg.obj);
+            w.scan();
             break;
             
           case MsgCode.SNAP:
@@ -458,6 +853,14 @@ public class ScannerSession extends Handler implements CameraManager.Listener {
           case MsgCode.QUIT:
             w.quit();
             break;
+
+          case MsgCode.SHUTDOWN:
+            ((ScanEngine)msg.obj).shutdown();
+            break;
+
+          case MsgCode.SHUTDOWN_MULTI:
+            ((MultiScan)msg.obj).shutdown();
+            break;
             
           default:
             break;
@@ -477,6 +880,12 @@ public class ScannerSession extends Handler implements CameraManager.Listener {
     public static final int API_SUCCESS = 5;
     public static final int API_FAILED = 6;
     public static final int API_START = 7;
+    public static final int SHUTDOWN = 8;
+    public static final int WAKE = 9;
+    public static final int MULTI = 10;
+    public static final int REFOCUS = 11;
+    public static final int SCENE_CHANGE = 12;
+    public static final int SHUTDOWN_MULTI = 13;
   }
 
 }
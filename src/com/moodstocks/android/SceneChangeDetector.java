@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2012 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.moodstocks.android;
+
+/* Pre-filter of ScannerSession skipping recognition on frames where
+ * nothing changed since the last recognized frame, e.g when the
+ * device lies on a counter or points at a blank wall.
+ * It compares the coarse luma thumbnail of each frame with the one
+ * of the last frame that went through recognition: below the
+ * threshold, the outcome of that recognition (including a locked
+ * result) is reported again. A full recognition still runs at least
+ * once per refresh period, to follow slow changes.
+ */
+public class SceneChangeDetector {
+
+  public static final String TAG = "SceneChangeDetector";
+
+  private float threshold = 3.0f;
+  private long refresh = 2000;
+
+  private int[] reference = new int[LumaThumbnail.COLS*LumaThumbnail.ROWS];
+  private boolean empty = true;
+  private long reference_time = 0;
+  private float difference = 0;
+
+  /* Mean luma difference, in levels (0-255), with the last
+   * recognized frame below which a frame is skipped. Default: 3.
+   */
+  public synchronized void setThreshold(float t) {
+    this.threshold = t;
+  }
+
+  /* Maximum time, in ms, between two recognitions. Default: 2 s. */
+  public synchronized void setRefresh(long ms) {
+    this.refresh = ms;
+  }
+
+  /* Returns the difference measured on the last frame, in luma levels */
+  public synchronized float getDifference() {
+    return difference;
+  }
+
+  /* Returns true if the frame with thumbnail `values` (see
+   * LumaThumbnail) can skip recognition at `now`.
+   */
+  protected synchronized boolean isUnchanged(int[] values, long now) {
+    if (empty) return false;
+    int d = 0;
+    for (int i = 0; i < reference.length; ++i) {
+      d += Math.abs(values[i]-reference[i]);
+    }
+    difference = (float)d/reference.length;
+    return difference < threshold && now - reference_time < refresh;
+  }
+
+  /* Records the thumbnail `values` of a frame sent to recognition at `now` */
+  protected synchronized void recognized(int[] values, long now) {
+    System.arraycopy(values, 0, reference, 0, reference.length);
+    reference_time = now;
+    empty = false;
+  }
+
+  protected synchronized void reset() {
+    empty = true;
+  }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2012 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.moodstocks.android;
+
+/* Default ScanEngine: runs image search, then barcode decoding
+ * if nothing was found, on the calling thread.
+ */
+public class SerialScanEngine implements ScanEngine {
+
+  public static final String TAG = "SerialScanEngine";
+
+  @Override
+  public Result scan(RecognitionBackend backend, Image qry, int options, ScanMetrics metrics)
+      throws MoodstocksError {
+    Result result = null;
+
+    //---------------
+    // IMAGE SEARCH
+    //---------------
+    if ((options & Result.Type.IMAGE) != 0) {
+      long t = System.nanoTime();
+      try {
+        result = backend.search(qry);
+      } catch (MoodstocksError e) {
+        if (e.getErrorCode() != MoodstocksError.Code.EMPTY)
+          throw e;
+      } finally {
+        metrics.record(ScanMetrics.Stage.SEARCH, System.nanoTime()-t);
+      }
+    }
+
+    //-------------------
+    // BARCODE DECODING
+    //-------------------
+    if (result == null && (options & ScanEngine.BARCODES) != 0) {
+      long t = System.nanoTime();
+      try {
+        result = backend.decode(qry, options);
+      } finally {
+        metrics.record(ScanMetrics.Stage.DECODE, System.nanoTime()-t);
+      }
+    }
+
+    return result;
+  }
+
+  @Override
+  public void drain() {
+    // void implementation: nothing runs in the background.
+  }
+
+  @Override
+  public void shutdown() {
+    // void implementation
+  }
+
+}
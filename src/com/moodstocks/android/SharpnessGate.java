@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2012 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.moodstocks.android;
+
+/* Gating of the frames sent to recognition on their sharpness.
+ * The sharpness of a frame is the variance of the Laplacian of its
+ * luma plane, sampled on the central part of the frame: motion blur
+ * and defocus remove the high frequencies it measures.
+ * A frame goes through if it is at least as sharp as an absolute
+ * floor and as a fraction of the sharpest recent frames. Rejected
+ * frames skip recognition, and the autofocus is nudged. At least one
+ * frame goes through per max gap, so a scene that is soft by nature
+ * (e.g low texture) is still scanned.
+ */
+public class SharpnessGate {
+
+  public static final String TAG = "SharpnessGate";
+
+  // samples per side of the central region
+  private static final int SAMPLES = 48;
+  // decay of the recent peak, per frame
+  private static final float DECAY = 0.95f;
+  // rejected frames in a row before refocusing
+  private static final int REJECTIONS = 3;
+
+  private float floor = 25.0f;
+  private float ratio = 0.4f;
+  private long max_gap = 1000;
+  private long refocus_delay = 1500;
+
+  private float peak = 0;
+  private float score = 0;
+  private long last_pass = 0;
+  private long last_refocus = 0;
+  // consecutive rejected frames
+  private int rejected = 0;
+
+  /* A frame must have a Laplacian variance of at least `floor`, and
+   * at least `ratio` times the one of the sharpest recent frames.
+   * Defaults to 25 and 0.4.
+   */
+  public synchronized void setThresholds(float floor, float ratio) {
+    this.floor = floor;
+    this.ratio = ratio;
+  }
+
+  /* Let a frame through at least every `ms` milliseconds. Default: 1 s */
+  public synchronized void setMaxGap(long ms) {
+    this.max_gap = ms;
+  }
+
+  /* Returns the sharpness of the last frame */
+  public synchronized float getScore() {
+    return score;
+  }
+
+  /* Returns the variance of the Laplacian of the central half of
+   * the `w` x `h` luma plane in `data` (NV21 or GRAY8).
+   */
+  protected static float sharpness(byte[] data, int w, int h) {
+    int x0 = w/4, y0 = h/4;
+    int sx = Math.max(1, (w/2)/SAMPLES);
+    int sy = Math.max(1, (h/2)/SAMPLES);
+    long sum = 0;
+    long sum2 = 0;
+    int n = 0;
+    for (int y = Math.max(1, y0); y < Math.min(h-1, y0+h/2); y += sy) {
+      int row = y*w;
+      for (int x = Math.max(1, x0); x < Math.min(w-1, x0+w/2); x += sx) {
+        int p = row+x;
+        int l = 4*(data[p]&0xff) - (data[p-1]&0xff) - (data[p+1]&0xff)
+                - (data[p-w]&0xff) - (data[p+w]&0xff);
+        sum += l;
+        sum2 += l*l;
+        n++;
+      }
+    }
+    if (n == 0) return 0;
+    float mean = (float)sum/n;
+    return (float)sum2/n - mean*mean;
+  }
+
+  /* Returns true if the `w` x `h` frame in `data` is sharp enough to
+   * be sent to recognition at `now`.
+   */
+  protected synchronized boolean accept(byte[] data, int w, int h, long now) {
+    score = sharpness(data, w, h);
+    peak = Math.max(score, peak*DECAY);
+    if ((score >= floor && score >= ratio*peak) || now - last_pass >= max_gap) {
+      last_pass = now;
+      rejected = 0;
+      return true;
+    }
+    rejected++;
+    return false;
+  }
+
+  /* Returns true if the autofocus should be triggered again after a
+   * rejected frame at `now`, i.e if the last frames were all blurry.
+   */
+  protected synchronized boolean refocus(long now) {
+    if (rejected < REJECTIONS || now - last_refocus < refocus_delay) return false;
+    last_refocus = now;
+    return true;
+  }
+
+  protected synchronized void reset() {
+    peak = 0;
+    last_pass = 0;
+    rejected = 0;
+  }
+
+}
@@ -24,19 +24,38 @@
 package com.moodstocks.android;
 
 import java.lang.ref.WeakReference;
-import java.util.Iterator;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.os.Handler;
 import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
 
 public class Sync extends Handler implements Runnable {
 
   public static final String TAG = "Sync";
   private WeakReference<Listener> listener;
   private List<WeakReference<Listener>> extra;
-  private Set<Sync> set;
+  private OperationRegistry<Sync> set;
+  private long id;
+
+  // progress coalescing: at most one update per `interval` ms
+  // or per `step` percent, the final update is always delivered.
+  private long interval = 0;
+  private int step = 0;
+  private long last_time = 0;
+  private int last_percent = -1;
+  // latest (total, current) pair, and whether it is already posted.
+  private final AtomicLong latest = new AtomicLong();
+  private final AtomicBoolean posted = new AtomicBoolean(false);
+  // on-disk marker of an interrupted sync.
+  private SyncCheckpoint checkpoint = null;
+  private CancellationToken token;
+  // set once the listeners were notified of the end.
+  private boolean ended = false;
   
   public static interface Listener{
     /* notifies the caller that a Sync has been launched */
@@ -58,25 +77,58 @@ public class Sync extends Handler implements Runnable {
     private static final int PROGRESS = 3;
   }
 
-  protected Sync(Listener listener, List<WeakReference<Listener>> extra, Set<Sync> set) {
+  /* `extra` must support concurrent iteration and modification,
+   * e.g a CopyOnWriteArrayList.
+   */
+  protected Sync(Listener listener, List<WeakReference<Listener>> extra,
+                 OperationRegistry<Sync> set, CancellationToken token) {
     super();
+    this.token = token;
     this.extra = extra;
-    Iterator<WeakReference<Listener>> it = extra.iterator();
-    while (it.hasNext()) {
-      WeakReference<Listener> l = it.next();
+    for (WeakReference<Listener> l : extra) {
       if (l.get() == listener)
         listener = null;
       // clean dead references
       if (l.get() == null)
-        it.remove();
+        extra.remove(l);
     }
     this.listener = new WeakReference<Listener>(listener);
     this.set = set;
-    set.add(this);
+    this.id = set.add(this);
+    // the native sync cannot be interrupted: the listeners are
+    // notified right away, and the core finishes in the background.
+    token.onCancel(new Runnable() {
+      @Override
+      public void run() {
+        endMessage(Sync.this.token.error());
+      }
+    });
+  }
+
+  /* Cancels the sync, see Scanner.sync(Listener, CancellationToken) */
+  protected void cancel() {
+    token.cancel();
+  }
+
+  /* Coalesces the progress notifications, see Scanner.setSyncProgressThrottle */
+  void throttle(long interval, int step) {
+    this.interval = interval;
+    this.step = step;
+  }
+
+  /* Marks the sync as running in `c`, to tell if it was interrupted */
+  void checkpoint(SyncCheckpoint c) {
+    this.checkpoint = c;
   }
 
   @Override
   public void run() {
+    // leave the CPU to the UI and to recognition.
+    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+    if (token.isCancelled())
+      return;
+    if (checkpoint != null)
+      checkpoint.begin();
     startMessage();
     MoodstocksError err = null;
     try {
@@ -84,6 +136,8 @@ public class Sync extends Handler implements Runnable {
     } catch (MoodstocksError e) {
       err = e;
     }
+    if (checkpoint != null)
+      checkpoint.end(err);
     endMessage(err);
   }
 
@@ -98,11 +152,33 @@ public class Sync extends Handler implements Runnable {
   // Called from JNI.
   @SuppressWarnings("unused")
   private void progressMessage(int total, int current) {
-    Message.obtain(this, MsgCode.PROGRESS, total, current).sendToTarget();
+    // never report more than 100%.
+    if (current > total)
+      current = Math.max(0, total);
+    if (token.isCancelled())
+      return;
+    latest.set(((long)total << 32) | (current & 0xffffffffL));
+    long now = SystemClock.uptimeMillis();
+    int percent = percent(total, current);
+    if (current < total && now - last_time < interval && percent - last_percent < step)
+      return;
+    last_time = now;
+    last_percent = percent;
+    // a notification still in the queue will pick the latest values.
+    if (posted.compareAndSet(false, true))
+      Message.obtain(this, MsgCode.PROGRESS).sendToTarget();
+  }
+
+  /* Progress in percent, 0 if `total` is unknown */
+  public static int percent(int total, int current) {
+    if (total <= 0) return 0;
+    return (int)(100L * current / total);
   }
 
   @Override
   public void handleMessage(Message msg) {
+    // nothing is reported after the end of a cancelled sync.
+    if (ended) return;
     switch (msg.what) {
       case MsgCode.START:
         start();
@@ -111,7 +187,9 @@ public class Sync extends Handler implements Runnable {
         end((MoodstocksError)msg.obj);
         break;
       case MsgCode.PROGRESS:
-        progress(msg.arg1, msg.arg2);
+        posted.set(false);
+        long v = latest.get();
+        progress((int)(v >>> 32), (int)v);
         break;
       default:
         break;
@@ -119,57 +197,49 @@ public class Sync extends Handler implements Runnable {
   }
 
   private void start() {
-    if (listener.get() != null)
-      listener.get().onSyncStart();
-    Iterator<WeakReference<Listener>> it = extra.iterator();
-    while (it.hasNext()) {
-    WeakReference<Listener> l = it.next();
-      if (l.get() == null)
-        it.remove();
-      else
-        l.get().onSyncStart();
-    }
+    for (Listener l : listeners())
+      l.onSyncStart();
   }
 
   private void end(MoodstocksError e) {
-    set.remove(this);
-    if (e == null) {
-      if (listener.get() != null)
-        listener.get().onSyncComplete();
-      Iterator<WeakReference<Listener>> it = extra.iterator();
-      while (it.hasNext()) {
-      WeakReference<Listener> l = it.next();
-        if (l.get() == null)
-          it.remove();
-        else
-          l.get().onSyncComplete();
-      }
-    }
-    else {
-      if (listener.get() != null)
-        listener.get().onSyncFailed(e);
-      Iterator<WeakReference<Listener>> it = extra.iterator();
-      while (it.hasNext()) {
-      WeakReference<Listener> l = it.next();
-        if (l.get() == null)
-          it.remove();
-        else
-          l.get().onSyncFailed(e);
-      }
+    ended = true;
+    token.dispose();
+    set.remove(id);
+    for (Listener l : listeners()) {
+      if (e == null)
+        l.onSyncComplete();
+      else
+        l.onSyncFailed(e);
     }
   }
 
-  private void progress(int total, int current) {
-    if (listener.get() != null)
-      listener.get().onSyncProgress(total, current);
-    Iterator<WeakReference<Listener>> it = extra.iterator();
-    while (it.hasNext()) {
-    WeakReference<Listener> l = it.next();
-      if (l.get() == null)
-        it.remove();
+  void progress(int total, int current) {
+    for (Listener l : listeners())
+      l.onSyncProgress(total, current);
+  }
+
+  /* Returns the live listeners of this sync. Dead references are
+   * cleaned from the extra listeners, that other threads may be
+   * reading or modifying at the same time.
+   */
+  private List<Listener> listeners() {
+    List<Listener> l = new ArrayList<Listener>(extra.size()+1);
+    Listener main = listener.get();
+    if (main != null)
+      l.add(main);
+    for (WeakReference<Listener> r : extra) {
+      Listener x = r.get();
+      if (x == null)
+        extra.remove(r);
       else
-        l.get().onSyncProgress(total, current);
+        l.add(x);
     }
+    return l;
+  }
+
+  /* Returns the id of this sync */
+  protected long getId() {
+    return id;
   }
 
 }
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2012 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.moodstocks.android;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.util.Log;
+
+/* On-disk marker of a running Sync.
+ * The file is created when a sync starts and deleted when it ends,
+ * unless it was interrupted (connection loss, timeout, process death).
+ * It only tells that the previous sync did not complete, so that it
+ * can be run again from the start: resuming a sync where it stopped
+ * is up to the core, and is not done here.
+ */
+class SyncCheckpoint {
+
+  public static final String TAG = "SyncCheckpoint";
+
+  private final File file;
+
+  SyncCheckpoint(String path) {
+    super();
+    this.file = new File(path);
+  }
+
+  /* Returns true if the previous sync did not complete */
+  public boolean isInterrupted() {
+    return file.exists();
+  }
+
+  /* Starts a sync */
+  public synchronized void begin() {
+    try {
+      if (!file.exists() && !file.createNewFile())
+        Log.w(TAG, "cannot create " + file.getName());
+    } catch (IOException e) {
+      Log.w(TAG, "cannot create " + file.getName() + ": " + e);
+    }
+  }
+
+  /* Ends the running sync: the marker is kept only if the
+   * sync should be run again after `e`.
+   */
+  public synchronized void end(MoodstocksError e) {
+    if (e != null && isResumable(e.getErrorCode()))
+      return;
+    if (file.exists() && !file.delete())
+      Log.w(TAG, "cannot delete " + file.getName());
+  }
+
+  /* Returns true for the errors after which a sync should be run again */
+  public static boolean isResumable(int code) {
+    return code == MoodstocksError.Code.NOCONN ||
+           code == MoodstocksError.Code.TIMEOUT ||
+           code == MoodstocksError.Code.SLOWCONN;
+  }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2012 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.moodstocks.android;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+
+/* Schedules the syncs of a Scanner.
+ * - requests made while a sync is scheduled or running are merged
+ *   into it,
+ * - syncs failing with a connection error or a busy database are
+ *   retried with an exponential backoff: the listeners of a request
+ *   are told of the first failure, and the retries go on silently,
+ * - periodic syncs can be enabled, optionally on Wi-Fi only,
+ * - syncs are deferred while a ScannerSession is scanning, so that
+ *   they do not compete with recognition for the CPU.
+ * Notifications are delivered on the UI thread, from which the
+ * scheduler must be used.
+ */
+public class SyncScheduler extends Handler implements Sync.Listener {
+
+  public static final String TAG = "SyncScheduler";
+
+  private static final class MsgCode {
+    private static final int SYNC = 1;
+  }
+
+  private Context context;
+  private Scanner scanner;
+  // listeners of the scheduled sync.
+  private List<Sync.Listener> listeners = new ArrayList<Sync.Listener>();
+  private boolean pending = false;
+  private boolean syncing = false;
+  private boolean requested = false;
+  private int attempt = 0;
+  private CancellationToken token = null;
+
+  private long period = 0;
+  private boolean wifi_only = false;
+  private long min_backoff = 5000;
+  private long max_backoff = 15*60*1000;
+  private int max_attempts = 8;
+  private long defer_delay = 10000;
+
+  public SyncScheduler(Context context, Scanner scanner) {
+    super(Looper.getMainLooper());
+    this.context = context.getApplicationContext();
+    this.scanner = scanner;
+  }
+
+  /* Requests a sync as soon as possible. If a sync is already
+   * scheduled or running, the request is merged into it.
+   * `listener`, if not null, is notified of this sync only, and
+   * receives onSyncFailed() on its first failure: the scheduler then
+   * keeps retrying without it. A request with a listener is run at
+   * once even if a sync is waiting for a retry.
+   */
+  public void request(Sync.Listener listener) {
+    if (listener != null && !listeners.contains(listener))
+      listeners.add(listener);
+    requested = true;
+    // otherwise, a sync waiting for a retry keeps its backoff.
+    if (!syncing && (attempt == 0 || listener != null))
+      schedule(0);
+  }
+
+  /* Sync every `ms` milliseconds, counted from the end of the
+   * previous sync, 0 disables periodic syncs (default).
+   * If `wifi_only` is true, periodic syncs wait for a Wi-Fi network.
+   */
+  public void setPeriod(long ms, boolean wifi_only) {
+    this.period = ms;
+    this.wifi_only = wifi_only;
+    if (!pending && period > 0)
+      schedule(period);
+  }
+
+  /* Retry failed syncs after `min` ms, doubling the delay up to `max`
+   * ms, and give up after `attempts` attempts.
+   */
+  public void setBackoff(long min, long max, int attempts) {
+    this.min_backoff = min;
+    this.max_backoff = max;
+    this.max_attempts = Math.max(1, attempts);
+  }
+
+  /* Delay, in ms, by which syncs are deferred while scanning */
+  public void setDeferDelay(long ms) {
+    this.defer_delay = ms;
+  }
+
+  /* Cancels the scheduled syncs, and the running one: its listeners
+   * are notified of a MoodstocksError.Code.ABORT error.
+   */
+  public void cancel() {
+    removeMessages(MsgCode.SYNC);
+    period = 0;
+    if (syncing) {
+      token.cancel();
+    }
+    else {
+      pending = false;
+      requested = false;
+      attempt = 0;
+      listeners.clear();
+    }
+  }
+
+  /* Returns true if a sync is scheduled or running */
+  public boolean isPending() {
+    return pending;
+  }
+
+  private void schedule(long delay) {
+    pending = true;
+    removeMessages(MsgCode.SYNC);
+    sendEmptyMessageDelayed(MsgCode.SYNC, delay);
+  }
+
+  @Override
+  public void handleMessage(Message msg) {
+    if (msg.what != MsgCode.SYNC || syncing)
+      return;
+    if (ScannerSession.isScanning()) {
+      schedule(defer_delay);
+      return;
+    }
+    NetworkInfo net = getNetwork();
+    if (net == null || !net.isConnected()) {
+      retry(new MoodstocksError("no network", MoodstocksError.Code.NOCONN));
+      return;
+    }
+    if (!requested && wifi_only && net.getType() != ConnectivityManager.TYPE_WIFI) {
+      schedule(period);
+      return;
+    }
+    token = new CancellationToken();
+    if (!scanner.sync(this, token)) {
+      // a sync started outside of the scheduler is running.
+      schedule(defer_delay);
+      return;
+    }
+    syncing = true;
+  }
+
+  private NetworkInfo getNetwork() {
+    ConnectivityManager cm = (ConnectivityManager)context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    return (cm != null) ? cm.getActiveNetworkInfo() : null;
+  }
+
+  /* Returns true for the errors after which a sync is retried */
+  public static boolean isRetryable(int code) {
+    return SyncCheckpoint.isResumable(code) || code == MoodstocksError.Code.BUSY;
+  }
+
+  private void retry(MoodstocksError e) {
+    if (isRetryable(e.getErrorCode()) && attempt+1 < max_attempts) {
+      long delay = Math.min(max_backoff, min_backoff << Math.min(attempt, 30));
+      attempt++;
+      Log.d(TAG, "sync failed (" + e.getErrorCode() + "), retry #" + attempt + " in " + delay + "ms");
+      schedule(delay);
+      notifyEnd(e);
+    }
+    else {
+      finish(e);
+    }
+  }
+
+  private void finish(MoodstocksError e) {
+    pending = false;
+    requested = false;
+    attempt = 0;
+    if (period > 0)
+      schedule(period);
+    notifyEnd(e);
+  }
+
+  // notifies the listeners of the end of their request, and drops them.
+  private void notifyEnd(MoodstocksError e) {
+    List<Sync.Listener> l = new ArrayList<Sync.Listener>(listeners);
+    listeners.clear();
+    for (Sync.Listener listener : l) {
+      if (e == null)
+        listener.onSyncComplete();
+      else
+        listener.onSyncFailed(e);
+    }
+  }
+
+  //---------------
+  // Sync.Listener
+  //---------------
+  @Override
+  public void onSyncStart() {
+    for (Sync.Listener l : new ArrayList<Sync.Listener>(listeners))
+      l.onSyncStart();
+  }
+
+  @Override
+  public void onSyncComplete() {
+    syncing = false;
+    finish(null);
+  }
+
+  @Override
+  public void onSyncFailed(MoodstocksError e) {
+    syncing = false;
+    retry(e);
+  }
+
+  @Override
+  public void onSyncProgress(int total, int current) {
+    for (Sync.Listener l : new ArrayList<Sync.Listener>(listeners))
+      l.onSyncProgress(total, current);
+  }
+
+}
@@ -38,6 +38,7 @@ import android.util.Log;
 import com.moodstocks.android.MoodstocksError;
 import com.moodstocks.android.Scanner;
 import com.moodstocks.android.Sync;
+import com.moodstocks.android.SyncScheduler;
 
 public class MoodstocksPlugin extends CordovaPlugin implements Sync.Listener {
 
@@ -51,9 +52,9 @@ public class MoodstocksPlugin extends CordovaPlugin implements Sync.Listener {
 	public static final String DISMISS = "dismiss";
 
 	public static final String PLUGINACTION = "pluginAction";
-	public static final String MESSAGE = "message";
-	public static final String STATUS = "status";
-	public static final String PROGRESS =  "progress";
+	public static final String MESSAGE = PluginJson.MESSAGE;
+	public static final String STATUS = PluginJson.STATUS;
+	public static final String PROGRESS =  PluginJson.PROGRESS;
 
 	private CallbackContext syncCallback;
 	private static CallbackContext scanCallback;
@@ -62,6 +63,7 @@ public class MoodstocksPlugin extends CordovaPlugin implements Sync.Listener {
 	private boolean scannerStarted = false;
 	public boolean compatible = false;
 	private Scanner scanner = null;
+	private SyncScheduler scheduler = null;
 
 	//--------------------------------
 	// Moodstocks API key/secret pair
@@ -117,6 +119,7 @@ public class MoodstocksPlugin extends CordovaPlugin implements Sync.Listener {
 			try {
 				this.scanner = Scanner.get();
 				scanner.open(this.cordova.getActivity().getApplicationContext(), API_KEY, API_SECRET);
+				scheduler = new SyncScheduler(this.cordova.getActivity(), scanner);
 				callbackContext.success();
 
 			} catch (MoodstocksError e) {
@@ -153,7 +156,16 @@ public class MoodstocksPlugin extends CordovaPlugin implements Sync.Listener {
 	}
 
 	private void sync() {
-		scanner.sync(this);
+		// merged with a scheduled sync and deferred while scanning. The
+		// first failure is reported, the scheduler keeps retrying on
+		// connection errors in the background.
+		final Sync.Listener listener = this;
+		this.cordova.getActivity().runOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				scheduler.request(listener);
+			}
+		});
 	}
 
 	public void scan(JSONArray args) throws JSONException {
@@ -162,6 +174,11 @@ public class MoodstocksPlugin extends CordovaPlugin implements Sync.Listener {
 		Intent scanIntent = new Intent(cordova.getActivity(), MoodstocksScanActivity.class);
 		scanIntent.putExtra("activity", "MoodstocksScanActivity");
 		scanIntent.putExtra("scanOptions", args.getInt(0));
+		// optional: time window (ms) during which a result is only sent once
+		scanIntent.putExtra(MoodstocksScanActivity.DEDUP_WINDOW,
+				args.optLong(1, ResultFilter.DEFAULT_WINDOW));
+		// optional: report all the barcodes in view as arrays of results
+		scanIntent.putExtra(MoodstocksScanActivity.MULTI_SCAN, args.optBoolean(2, false));
 
 		// NOTE: the original startActivityForResult() will pause PhoneGap app's js code
 		// the one we use here is a override-version
@@ -207,15 +224,7 @@ public class MoodstocksPlugin extends CordovaPlugin implements Sync.Listener {
 		// Developer logs, do not use in production
 		Log.d(TAG, " [SYNC] Starting...");
 
-		JSONObject obj = new JSONObject();
-
-		try {
-			obj.put(MESSAGE, "");
-			obj.put(STATUS, 1);
-			obj.put(PROGRESS, 0);
-		} catch(JSONException e) {}
-
-		PluginResult r = new PluginResult(PluginResult.Status.OK, obj);
+		PluginResult r = new PluginResult(PluginResult.Status.OK, syncStatus(1, 0));
 		r.setKeepCallback(true);
 		this.syncCallback.sendPluginResult(r);
 	}
@@ -225,15 +234,7 @@ public class MoodstocksPlugin extends CordovaPlugin implements Sync.Listener {
 		// Developer logs, do not use in production
 		Log.d(TAG, " [SYNC] Complete!");
 
-		JSONObject obj = new JSONObject();
-
-		try {
-			obj.put(MESSAGE, "");
-			obj.put(STATUS, 3);
-			obj.put(PROGRESS, 100);
-		} catch(JSONException e) {}
-
-		PluginResult r = new PluginResult(PluginResult.Status.OK, obj);
+		PluginResult r = new PluginResult(PluginResult.Status.OK, syncStatus(3, 100));
 		r.setKeepCallback(false);
 		this.syncCallback.sendPluginResult(r);
 	}
@@ -243,15 +244,7 @@ public class MoodstocksPlugin extends CordovaPlugin implements Sync.Listener {
 		// fail silently, the user has online search callback.
 		e.log();
 
-		JSONObject obj = new JSONObject();
-
-		try {
-			obj.put(MESSAGE, "");
-			obj.put(STATUS, 0);
-			obj.put(PROGRESS, 0);
-		} catch(JSONException e1) {}
-
-		PluginResult r = new PluginResult(PluginResult.Status.ERROR, obj);
+		PluginResult r = new PluginResult(PluginResult.Status.ERROR, syncStatus(0, 0));
 		r.setKeepCallback(false);
 		this.syncCallback.sendPluginResult(r);
 	}
@@ -261,22 +254,20 @@ public class MoodstocksPlugin extends CordovaPlugin implements Sync.Listener {
 		// Developer logs, do not use in production
 		Log.d(TAG, "[SYNC] " + current + "/" + total);
 
-		JSONObject obj = new JSONObject();
-
-		try {
-			obj.put(MESSAGE, "");
-			obj.put(STATUS, 2);
-			obj.put(PROGRESS, 100 * (current/total));
-		} catch(JSONException e) {}
-
-		PluginResult r = new PluginResult(PluginResult.Status.OK, obj);
+		PluginResult r = new PluginResult(PluginResult.Status.OK, syncStatus(2, Sync.percent(total, current)));
 		r.setKeepCallback(true);
 		this.syncCallback.sendPluginResult(r);
 	}
 
+	// Builds the object sent to the sync callback
+	static JSONObject syncStatus(int status, int progress) {
+		return PluginJson.syncStatus(status, progress);
+	}
+
 	@Override
 	public void onDestroy() {
 		super.onDestroy();
+		if (scheduler != null) scheduler.cancel();
 		if (compatible) {
 			try {
 				/* you must close the scanner before exiting */
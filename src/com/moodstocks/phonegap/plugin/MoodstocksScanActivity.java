@@ -23,16 +23,21 @@
 
 package com.moodstocks.phonegap.plugin;
 
+import java.util.List;
+
 import org.apache.cordova.api.PluginResult;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.moodstocks.android.MoodstocksError;
+import com.moodstocks.android.MultiScan;
 import com.moodstocks.android.Result;
 import com.moodstocks.android.ScannerSession;
 import org.openfoodfacts.scanner2.R;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.annotation.TargetApi;
 import android.app.Activity;
 import android.content.BroadcastReceiver;
@@ -43,7 +48,7 @@ import android.view.SurfaceView;
 import android.webkit.WebView;
 import android.widget.RelativeLayout;
 
-public class MoodstocksScanActivity extends Activity implements ScannerSession.Listener {
+public class MoodstocksScanActivity extends Activity implements ScannerSession.MultiListener {
     
 	public static final String TAG = "ScanActivity";
 	public static final String PLUGINACTION = "pluginAction";
@@ -51,11 +56,14 @@ public class MoodstocksScanActivity extends Activity implements ScannerSession.L
 	public static final String RESUME = "resume";
 	public static final String DISMISS = "dismiss";
 	
-	public static final String FORMAT = "format";
-	public static final String VALUE = "value";
+	public static final String FORMAT = PluginJson.FORMAT;
+	public static final String VALUE = PluginJson.VALUE;
+	public static final String DEDUP_WINDOW = "dedupWindow";
+	public static final String MULTI_SCAN = "multiScan";
 
 	private int ScanOptions = Result.Type.IMAGE;
 	private ScannerSession session;
+	private ResultFilter filter = new ResultFilter();
 	private RelativeLayout webContainer;
 	private boolean backPressActivated = true;
 	private ActionReceiver MoodstocksActionReceiver;
@@ -72,6 +80,7 @@ public class MoodstocksScanActivity extends Activity implements ScannerSession.L
 		    }
 			
 			if (receivedAction.equals(RESUME)) {
+				filter.clear();
 				session.resume();
 				backPressActivated = true;
 			}
@@ -112,6 +121,13 @@ public class MoodstocksScanActivity extends Activity implements ScannerSession.L
 	    // Get scan options
 	    ScanOptions = getIntent().getExtras().getInt("scanOptions");
 	    session.setOptions(ScanOptions);
+	    
+	    // Get the time window during which a result is sent once
+	    filter.setWindow(getIntent().getExtras().getLong(DEDUP_WINDOW, ResultFilter.DEFAULT_WINDOW));
+	    
+	    // Report every barcode in view at once, for shelf scanning
+	    if (getIntent().getExtras().getBoolean(MULTI_SCAN, false))
+	    	session.setMultiScan(new MultiScan());
 	}
 
 	@Override
@@ -119,6 +135,7 @@ public class MoodstocksScanActivity extends Activity implements ScannerSession.L
 		super.onResume();
 
 		// start scanning!
+		filter.clear();
 		session.resume();
 		
 		// Setup the an action receiver for receiving broadcast intent
@@ -180,21 +197,32 @@ public class MoodstocksScanActivity extends Activity implements ScannerSession.L
 
 	@Override
 	public void onScanComplete(Result result) {
-		if (result != null) {
-			// result found, send to overlay
-			JSONObject obj = new JSONObject();
-			try {
-				obj.put(FORMAT, result.getType());
-				obj.put(VALUE, result.getValue());
-			} catch (JSONException e) {}
-			
-			PluginResult r = new PluginResult(PluginResult.Status.OK, obj);
+		if (result != null && filter.accept(result, SystemClock.uptimeMillis())) {
+			// new result found, send to overlay
+			PluginResult r = new PluginResult(PluginResult.Status.OK, toJSON(result));
 			r.setKeepCallback(true);
 			
 			MoodstocksPlugin.getScanCallback().sendPluginResult(r);
 		}
 	}
 	
+	@Override
+	public void onMultiScanComplete(List<Result> results) {
+		// batch of the codes in view, send to overlay as an array
+		JSONArray array = new JSONArray();
+		for (Result result : results)
+			array.put(toJSON(result));
+		PluginResult r = new PluginResult(PluginResult.Status.OK, array);
+		r.setKeepCallback(true);
+		
+		MoodstocksPlugin.getScanCallback().sendPluginResult(r);
+	}
+	
+	// Builds the object sent to the scan callback for a result
+	static JSONObject toJSON(Result result) {
+		return PluginJson.result(result);
+	}
+
 	@Override
 	public void onScanFailed(MoodstocksError error) {
 		// in this sample code, we just log the errors.
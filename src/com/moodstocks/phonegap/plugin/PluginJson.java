@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2013 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.moodstocks.phonegap.plugin;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.moodstocks.android.Result;
+
+/* JSON objects sent to the Javascript callbacks of the plugin.
+ * Kept apart from MoodstocksPlugin and MoodstocksScanActivity so that
+ * they can be built (and benchmarked) without the Android resources.
+ */
+public final class PluginJson {
+
+	public static final String MESSAGE = "message";
+	public static final String STATUS = "status";
+	public static final String PROGRESS =  "progress";
+	public static final String FORMAT = "format";
+	public static final String VALUE = "value";
+
+	private PluginJson() {
+		super();
+	}
+
+	// Builds the object sent to the sync callback
+	static JSONObject syncStatus(int status, int progress) {
+		JSONObject obj = new JSONObject();
+
+		try {
+			obj.put(MESSAGE, "");
+			obj.put(STATUS, status);
+			obj.put(PROGRESS, progress);
+		} catch(JSONException e) {}
+
+		return obj;
+	}
+
+	// Builds the object sent to the scan callback for a result
+	static JSONObject result(Result result) {
+		JSONObject obj = new JSONObject();
+		try {
+			obj.put(FORMAT, result.getType());
+			obj.put(VALUE, result.getValue());
+		} catch (JSONException e) {}
+		return obj;
+	}
+
+}
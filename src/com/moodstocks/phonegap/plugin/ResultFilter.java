@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2013 Moodstocks SAS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.moodstocks.phonegap.plugin;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.moodstocks.android.Result;
+
+/* Drops the results that were already sent to the scan callback.
+ * A result is sent again only once it has not been seen for the
+ * whole time window: a product kept in view crosses the bridge once.
+ */
+class ResultFilter {
+
+	public static final long DEFAULT_WINDOW = 2000;
+
+	// last time each result was seen, keyed on type and value
+	private final HashMap<String, Long> seen = new HashMap<String, Long>();
+	private long window = DEFAULT_WINDOW;
+
+	// Time window in ms, 0 sends every result
+	public void setWindow(long ms) {
+		window = Math.max(0, ms);
+	}
+
+	// Returns true if `result`, seen at `now`, must be sent
+	public boolean accept(Result result, long now) {
+		prune(now);
+		String key = result.getType() + ":" + result.getValue();
+		Long last = seen.put(key, now);
+		return last == null || now - last >= window;
+	}
+
+	public void clear() {
+		seen.clear();
+	}
+
+	private void prune(long now) {
+		Iterator<Map.Entry<String, Long>> it = seen.entrySet().iterator();
+		while (it.hasNext()) {
+			if (now - it.next().getValue() >= window)
+				it.remove();
+		}
+	}
+}